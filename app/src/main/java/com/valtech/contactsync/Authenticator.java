@@ -11,6 +11,12 @@ import com.valtech.contactsync.api.InvalidGrantException;
 public class Authenticator extends AbstractAccountAuthenticator {
   private static final String TAG = Authenticator.class.getSimpleName();
 
+  // User data key of the time the cached access token expires, in milliseconds
+  public static final String ACCESS_TOKEN_EXPIRES_AT = "access_token_expires_at";
+
+  // Stop using an access token this long before it expires
+  private static final long EXPIRY_MARGIN_MILLIS = 60 * 1000;
+
   private final Context context;
   private final ApiClient apiClient;
 
@@ -41,13 +47,18 @@ public class Authenticator extends AbstractAccountAuthenticator {
     Bundle bundle = new Bundle();
 
     try {
-      String refreshToken = AccountManager.get(context).getPassword(account);
-      String accessToken = apiClient.getAccessToken(refreshToken);
-      Log.i(TAG, "Got new access token.");
+      AccountManager accountManager = AccountManager.get(context);
+      String refreshToken = accountManager.getPassword(account);
+      ApiClient.TokenResponse tokenResponse = apiClient.getAccessToken(refreshToken);
+      Log.i(TAG, "Got new access token, expires in " + tokenResponse.expiresIn + " s.");
+
+      // AccountManager caches the token, remember how long it can be used
+      long expiresAt = tokenResponse.expiresIn > 0 ? System.currentTimeMillis() + tokenResponse.expiresIn * 1000 : 0;
+      accountManager.setUserData(account, ACCESS_TOKEN_EXPIRES_AT, String.valueOf(expiresAt));
 
       bundle.putString(AccountManager.KEY_ACCOUNT_NAME, account.name);
       bundle.putString(AccountManager.KEY_ACCOUNT_TYPE, context.getString(R.string.account_type));
-      bundle.putString(AccountManager.KEY_AUTHTOKEN, accessToken);
+      bundle.putString(AccountManager.KEY_AUTHTOKEN, tokenResponse.accessToken);
 
       return bundle;
     } catch (InvalidGrantException e) {
@@ -75,6 +86,15 @@ public class Authenticator extends AbstractAccountAuthenticator {
     return null;
   }
 
+  /**
+   * Returns whether the cached access token of the account expires within a minute. Tokens without
+   * a known lifetime are treated as expired, so they are only used once.
+   */
+  public static boolean isAccessTokenExpiring(AccountManager accountManager, Account account) {
+    String expiresAt = accountManager.getUserData(account, ACCESS_TOKEN_EXPIRES_AT);
+    return expiresAt == null || Long.parseLong(expiresAt) - EXPIRY_MARGIN_MILLIS < System.currentTimeMillis();
+  }
+
   private Bundle startSignIn(AccountAuthenticatorResponse response) {
     Bundle result = new Bundle();
     Intent i = new Intent(context, SignInActivity.class);
@@ -0,0 +1,69 @@
+package com.valtech.contactsync;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies batches on a single thread of its own, so contacts are diffed while earlier batches are
+ * written and batches of different threads are never interleaved. Only a few batches may wait to
+ * be applied, submitting another one blocks until one of them is done.
+ */
+public class BatchWriter {
+  private static final String TAG = BatchWriter.class.getSimpleName();
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private final Semaphore slots;
+
+  public BatchWriter(int maxPending) {
+    this.slots = new Semaphore(maxPending);
+  }
+
+  /**
+   * Queues the write, waiting for a free slot first. Also waits when the thread is interrupted, so
+   * what a canceled sync has done can still be applied.
+   */
+  public Future<?> submit(final Runnable write) {
+    slots.acquireUninterruptibly();
+
+    try {
+      return executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            write.run();
+          } finally {
+            slots.release();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      slots.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Applies the queued batches and stops the thread.
+   */
+  public void shutdown() {
+    executor.shutdown();
+    boolean interrupted = false;
+
+    while (true) {
+      try {
+        if (executor.awaitTermination(1, TimeUnit.MINUTES)) break;
+        Log.w(TAG, "Still waiting for batches to be applied.");
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+}
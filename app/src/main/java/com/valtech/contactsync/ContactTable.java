@@ -0,0 +1,151 @@
+package com.valtech.contactsync;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The stored state of every raw contact of the account, kept in a few arrays instead of an object
+ * per contact, so large directories don't fill the heap with small objects. Rows are found by
+ * source id through an open addressing index. Use {@link #getContact(int)} to get a row as a
+ * {@link LocalContact} when it is about to be synced.
+ */
+public class ContactTable {
+  private static final int MIN_CAPACITY = 16;
+
+  private int size;
+  private String[] sourceIds;
+  private long[] rawContactIds;
+  // 0 when the raw contact has no fingerprint
+  private long[] fingerprints;
+  private String[] photoLastModified;
+  // 0 when the size of the image is unknown
+  private int[] photoSizes;
+  // rows whose picture URL is known to the sync index
+  private final BitSet pictures = new BitSet();
+  // row + 1 of each source id, 0 for a free slot
+  private int[] slots;
+  // Last-Modified values are shared by many images, keep each one once
+  private final Map<String, String> strings = new HashMap<>();
+
+  public ContactTable(int expectedSize) {
+    int capacity = Math.max(expectedSize, MIN_CAPACITY);
+    sourceIds = new String[capacity];
+    rawContactIds = new long[capacity];
+    fingerprints = new long[capacity];
+    photoLastModified = new String[capacity];
+    photoSizes = new int[capacity];
+    slots = new int[Integer.highestOneBit(capacity - 1) << 2];
+  }
+
+  /**
+   * Adds a raw contact. Returns false, and keeps the raw contact added first, if there already is
+   * one with the same source id.
+   */
+  public boolean add(long rawContactId, String sourceId, String fingerprint, String lastModified, String photoSize, boolean hasPicture) {
+    int slot = findSlot(sourceId);
+    if (slots[slot] != 0) return false;
+
+    if (size == sourceIds.length) grow();
+    int row = size++;
+    slots[slot] = row + 1;
+    // keep the index at most half full
+    if (size * 2 > slots.length) rehash(slots.length * 2);
+
+    sourceIds[row] = sourceId;
+    rawContactIds[row] = rawContactId;
+    fingerprints[row] = fingerprint != null ? parseFingerprint(fingerprint) : 0;
+    photoLastModified[row] = intern(lastModified);
+    photoSizes[row] = photoSize != null ? Integer.parseInt(photoSize) : 0;
+    pictures.set(row, hasPicture);
+    return true;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the row of the source id, or -1 if there is none.
+   */
+  public int find(String sourceId) {
+    return slots[findSlot(sourceId)] - 1;
+  }
+
+  public long getFingerprint(int row) {
+    return fingerprints[row];
+  }
+
+  public boolean hasPicture(int row) {
+    return pictures.get(row);
+  }
+
+  public LocalContact getContact(int row) {
+    LocalContact contact = new LocalContact();
+    contact.rawContactId = String.valueOf(rawContactIds[row]);
+    contact.sourceId = sourceIds[row];
+    contact.fingerprint = fingerprints[row] != 0 ? Long.toHexString(fingerprints[row]) : null;
+    contact.photoLastModified = photoLastModified[row];
+    contact.photoSize = photoSizes[row] != 0 ? String.valueOf(photoSizes[row]) : null;
+    return contact;
+  }
+
+  private int findSlot(String sourceId) {
+    int mask = slots.length - 1;
+    int slot = hash(sourceId) & mask;
+
+    while (slots[slot] != 0) {
+      String existing = sourceIds[slots[slot] - 1];
+      if (existing == null ? sourceId == null : existing.equals(sourceId)) return slot;
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  private void grow() {
+    int capacity = sourceIds.length * 2;
+    sourceIds = Arrays.copyOf(sourceIds, capacity);
+    rawContactIds = Arrays.copyOf(rawContactIds, capacity);
+    fingerprints = Arrays.copyOf(fingerprints, capacity);
+    photoLastModified = Arrays.copyOf(photoLastModified, capacity);
+    photoSizes = Arrays.copyOf(photoSizes, capacity);
+  }
+
+  private void rehash(int capacity) {
+    slots = new int[capacity];
+
+    for (int row = 0; row < size; row++) {
+      slots[findSlot(sourceIds[row])] = row + 1;
+    }
+  }
+
+  private String intern(String s) {
+    if (s == null) return null;
+    String existing = strings.get(s);
+    if (existing != null) return existing;
+    strings.put(s, s);
+    return s;
+  }
+
+  private static int hash(String sourceId) {
+    if (sourceId == null) return 0;
+    // spread the bits of the string hash, neighbouring slots are probed on collisions
+    int h = sourceId.hashCode() * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Parses a fingerprint written by {@link Long#toHexString(long)}, which may not fit in a signed
+   * long.
+   */
+  static long parseFingerprint(String fingerprint) {
+    try {
+      if (fingerprint.length() < 16) return Long.parseLong(fingerprint, 16);
+      return Long.parseLong(fingerprint.substring(0, 8), 16) << 32 | Long.parseLong(fingerprint.substring(8), 16);
+    } catch (NumberFormatException e) {
+      return 0; // synced again
+    }
+  }
+}
@@ -2,55 +2,132 @@ package com.valtech.contactsync;
 
 import android.accounts.Account;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 import android.provider.ContactsContract;
 import android.util.Log;
 
-import java.util.NoSuchElementException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import static android.provider.ContactsContract.CommonDataKinds.GroupMembership;
+import static android.provider.ContactsContract.Data;
+import static android.provider.ContactsContract.RawContacts;
+
+/**
+ * Resolves group titles to group ids. All groups of the account are read with one query when a
+ * sync starts, after that only missing groups touch the provider.
+ */
 public class GroupRepository {
   private static final String TAG = GroupRepository.class.getSimpleName();
 
   // Appending this query parameter means we perform as operations as a sync adapter, not as a user.
   // http://developer.android.com/reference/android/provider/ContactsContract.html#CALLER_IS_SYNCADAPTER
   private static final Uri GROUPS_CONTENT_URI = ContactsContract.Groups.CONTENT_URI.buildUpon().appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
+  private static final Uri RAW_CONTACT_CONTENT_URI = RawContacts.CONTENT_URI.buildUpon().appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
+
+  // SQLite allows 999 arguments per query
+  private static final int MAX_IDS_PER_DELETE = 500;
 
   private final ContentResolver resolver;
+  private final Map<String, Long> groupIds = new HashMap<>();
 
   public GroupRepository(ContentResolver resolver) {
     this.resolver = resolver;
   }
 
-  public long ensureGroup(Account account, String groupTitle) {
+  /**
+   * Reads the ids of all groups of the account, replacing what was read by an earlier sync.
+   */
+  public synchronized void load(Account account) {
+    groupIds.clear();
+    Cursor cursor = null;
+
     try {
-      return getGroupId(account, groupTitle);
-    } catch (NoSuchElementException e) {
-      createGroup(account, groupTitle);
-      return getGroupId(account, groupTitle);
+      cursor = resolver.query(ContactsContract.Groups.CONTENT_URI,
+        new String[] { ContactsContract.Groups.TITLE, ContactsContract.Groups._ID },
+        ContactsContract.Groups.ACCOUNT_TYPE + " = ? AND " + ContactsContract.Groups.DELETED + " = 0",
+        new String[] { account.type },
+        null);
+
+      while (cursor.moveToNext()) groupIds.put(cursor.getString(0), cursor.getLong(1));
+    } finally {
+      if (cursor != null) cursor.close();
     }
   }
 
-  private long getGroupId(Account account, String groupTitle) {
+  public synchronized long ensureGroup(Account account, String groupTitle) {
+    Long groupId = groupIds.get(groupTitle);
+
+    if (groupId == null) {
+      groupId = createGroup(account, groupTitle);
+      groupIds.put(groupTitle, groupId);
+    }
+
+    return groupId;
+  }
+
+  /**
+   * Deletes every raw contact of the account type that is a member of the group, with one delete
+   * per few hundred contacts. Returns the ids of the deleted raw contacts.
+   */
+  public List<String> deleteMembers(String accountType, String groupTitle) {
+    Long groupId = null;
     Cursor cursor = null;
 
     try {
       cursor = resolver.query(ContactsContract.Groups.CONTENT_URI,
         new String[] { ContactsContract.Groups._ID },
-        ContactsContract.Groups.ACCOUNT_TYPE + " = ? AND " + ContactsContract.Groups.TITLE + " = ?",
-        new String[] { account.type, groupTitle },
+        ContactsContract.Groups.ACCOUNT_TYPE + " = ? AND " + ContactsContract.Groups.TITLE + " = ? AND " + ContactsContract.Groups.DELETED + " = 0",
+        new String[] { accountType, groupTitle },
         null);
 
-      if (cursor.moveToNext()) return cursor.getLong(0);
+      if (cursor.moveToNext()) groupId = cursor.getLong(0);
     } finally {
       if (cursor != null) cursor.close();
     }
 
-    throw new NoSuchElementException();
+    if (groupId == null) return new ArrayList<>();
+
+    List<String> rawContactIds = new ArrayList<>();
+
+    try {
+      cursor = resolver.query(Data.CONTENT_URI,
+        new String[] { Data.RAW_CONTACT_ID },
+        Data.MIMETYPE + " = ? AND " + GroupMembership.GROUP_ROW_ID + " = ? AND " + RawContacts.ACCOUNT_TYPE + " = ?",
+        new String[] { GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId), accountType },
+        null);
+
+      while (cursor.moveToNext()) rawContactIds.add(String.valueOf(cursor.getLong(0)));
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    int deleted = 0;
+
+    for (int i = 0; i < rawContactIds.size(); i += MAX_IDS_PER_DELETE) {
+      List<String> chunk = rawContactIds.subList(i, Math.min(i + MAX_IDS_PER_DELETE, rawContactIds.size()));
+      StringBuilder placeholders = new StringBuilder();
+
+      for (int j = 0; j < chunk.size(); j++) {
+        if (j > 0) placeholders.append(',');
+        placeholders.append('?');
+      }
+
+      deleted += resolver.delete(RAW_CONTACT_CONTENT_URI,
+        RawContacts._ID + " IN (" + placeholders + ")",
+        chunk.toArray(new String[chunk.size()]));
+    }
+
+    Log.i(TAG, "Deleted " + deleted + " contacts in group " + groupTitle + ".");
+    return rawContactIds;
   }
 
-  private void createGroup(Account account, String groupTitle) {
+  private long createGroup(Account account, String groupTitle) {
     ContentValues values = new ContentValues();
 
     values.put(ContactsContract.Groups.TITLE, groupTitle);
@@ -60,7 +137,8 @@ public class GroupRepository {
     values.put(ContactsContract.Groups.ACCOUNT_NAME, account.name);
     values.put(ContactsContract.Groups.ACCOUNT_TYPE, account.type);
 
-    resolver.insert(GROUPS_CONTENT_URI, values);
+    Uri uri = resolver.insert(GROUPS_CONTENT_URI, values);
     Log.i(TAG, "Created group " + groupTitle + ".");
+    return ContentUris.parseId(uri);
   }
 }
@@ -1,7 +1,8 @@
 package com.valtech.contactsync;
 
 public class LocalContact {
-  public String rawContactId;
+  // set by the batch writer thread once the insert has been applied
+  public volatile String rawContactId;
   public String sourceId;
   public String displayName;
   public String email;
@@ -9,4 +10,12 @@ public class LocalContact {
   public String fixedPhoneNumber;
   public String shortPhoneNumber;
   public String photoLastModified;
+  public String photoSize;
+  public String fingerprint;
+  public String picture;
+
+  // used to order the profile image pass
+  public boolean starred;
+  public int timesContacted;
+  public long photoCheckedAt;
 }
\ No newline at end of file
@@ -2,76 +2,179 @@ package com.valtech.contactsync;
 
 import android.accounts.Account;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.database.Cursor;
-import android.net.Uri;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 import static android.provider.ContactsContract.CommonDataKinds;
 import static android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import static android.provider.ContactsContract.RawContacts;
+import static android.provider.ContactsContract.RawContactsEntity;
 
 public class LocalContactReader {
+  // SQLite allows 999 arguments per query
+  private static final int MAX_IDS_PER_QUERY = 500;
+
+  private static final String[] DATA_PROJECTION = new String[] {
+    RawContactsEntity._ID,
+    RawContactsEntity.DATA_ID,
+    RawContactsEntity.MIMETYPE,
+    StructuredName.DATA1,
+    StructuredName.DATA2
+  };
+
   private final ContentResolver resolver;
 
   public LocalContactReader(ContentResolver resolver) {
     this.resolver = resolver;
   }
 
-  public Map<String, LocalContact> getContacts(Account account) {
-    Cursor rawContactsCursor = null;
+  /**
+   * Reads the ids of the raw contacts of the account, enough to tell whether the sync index is
+   * still in line with the provider.
+   */
+  public long[] getRawContactIds(Account account) {
+    Cursor cursor = null;
+
+    try {
+      cursor = resolver.query(RawContacts.CONTENT_URI,
+        new String[] { RawContacts._ID },
+        RawContacts.ACCOUNT_TYPE + " = ?", new String[] { account.type },
+        null);
+
+      long[] ids = new long[cursor.getCount()];
+      for (int i = 0; cursor.moveToNext(); i++) ids[i] = cursor.getLong(0);
+      return ids;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  /**
+   * Reads the raw contacts of the account without their data rows, which is enough to tell which
+   * contacts have changed. Use {@link #loadData(Collection)} to read the data of the changed ones.
+   *
+   * Raw contacts with the source id of an older raw contact are not added to the table, they are
+   * added to the given duplicates instead.
+   */
+  public ContactTable getContacts(Account account, List<LocalContact> duplicates) {
+    Cursor cursor = null;
 
     try {
-      rawContactsCursor = resolver.query(RawContacts.CONTENT_URI, new String[] { RawContacts._ID, RawContacts.SYNC1 }, RawContacts.ACCOUNT_TYPE + " = ?", new String[] { account.type }, null);
-      Map<String, LocalContact> contacts = new HashMap<>();
-
-      while (rawContactsCursor.moveToNext()) {
-        long rawContactId = rawContactsCursor.getLong(0);
-        LocalContact contact = getContact(rawContactId);
-        contact.photoLastModified = rawContactsCursor.getString(1);
-        contacts.put(contact.sourceId, contact);
+      cursor = resolver.query(RawContacts.CONTENT_URI,
+        new String[] { RawContacts._ID, RawContacts.SOURCE_ID, RawContacts.SYNC1, RawContacts.SYNC2, RawContacts.SYNC3 },
+        RawContacts.ACCOUNT_TYPE + " = ?", new String[] { account.type },
+        RawContacts._ID);
+
+      ContactTable contacts = new ContactTable(cursor.getCount());
+
+      while (cursor.moveToNext()) {
+        if (contacts.add(cursor.getLong(0), cursor.getString(1), cursor.getString(3), cursor.getString(2), cursor.getString(4), false)) continue;
+
+        LocalContact duplicate = new LocalContact();
+        duplicate.rawContactId = String.valueOf(cursor.getLong(0));
+        duplicate.sourceId = cursor.getString(1);
+        duplicates.add(duplicate);
       }
 
       return contacts;
     } finally {
-      if (rawContactsCursor != null) rawContactsCursor.close();
+      if (cursor != null) cursor.close();
     }
   }
 
-  private LocalContact getContact(long rawContactId) {
-    Uri rawContactUri = ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId);
-    Uri entityUri = Uri.withAppendedPath(rawContactUri, RawContacts.Entity.CONTENT_DIRECTORY);
+  /**
+   * Reads whether the given contacts are starred, how often they have been contacted and when their
+   * profile image was last checked (SYNC4).
+   */
+  public void loadPhotoPriorities(Account account, Collection<LocalContact> contacts) {
+    Map<Long, LocalContact> contactsById = new HashMap<>();
+    for (LocalContact contact : contacts) contactsById.put(Long.valueOf(contact.rawContactId), contact);
+
     Cursor cursor = null;
 
     try {
-      cursor = resolver.query(entityUri,
-        new String[] { RawContacts.SOURCE_ID, RawContacts.Entity.DATA_ID, RawContacts.Entity.MIMETYPE, StructuredName.DATA1, StructuredName.DATA2 },
-        null, null, null);
-
-      LocalContact contact = new LocalContact();
-      contact.rawContactId = String.valueOf(rawContactId);
+      cursor = resolver.query(RawContacts.CONTENT_URI,
+        new String[] { RawContacts._ID, RawContacts.STARRED, RawContacts.TIMES_CONTACTED, RawContacts.SYNC4 },
+        RawContacts.ACCOUNT_TYPE + " = ?", new String[] { account.type },
+        null);
 
       while (cursor.moveToNext()) {
-        contact.sourceId = cursor.getString(0);
-        if (!cursor.isNull(1)) {
-          // We will here get one row per data item for this raw contact.
-          // The SOURCE_ID is duplicated for each row.
-          // We can know what type of data this row contains by looking at its mime type
-          String mimeType = cursor.getString(2);
-          int subType = cursor.getInt(4);
-          if (StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)) contact.displayName = cursor.getString(3);
-          if (CommonDataKinds.Email.CONTENT_ITEM_TYPE.equals(mimeType)) contact.email = cursor.getString(3);
-          if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE.equals(mimeType) && CommonDataKinds.Phone.TYPE_WORK_MOBILE == subType) contact.phoneNumber = cursor.getString(3);
-          if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE.equals(mimeType) && CommonDataKinds.Phone.TYPE_WORK == subType) contact.fixedPhoneNumber = cursor.getString(3);
-          if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE.equals(mimeType) && CommonDataKinds.Phone.TYPE_OTHER == subType) contact.shortPhoneNumber = cursor.getString(3);
-        }
+        LocalContact contact = contactsById.get(cursor.getLong(0));
+        if (contact == null) continue;
+        contact.starred = cursor.getInt(1) != 0;
+        contact.timesContacted = cursor.getInt(2);
+        contact.photoCheckedAt = cursor.isNull(3) ? 0 : Long.parseLong(cursor.getString(3));
       }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  /**
+   * Reads name, email and phone numbers of the given contacts, a few hundred contacts per query.
+   * Returns the number of queries made.
+   */
+  public int loadData(Collection<LocalContact> contacts) {
+    List<LocalContact> chunk = new ArrayList<>();
+    int queries = 0;
+
+    for (LocalContact contact : contacts) {
+      chunk.add(contact);
+
+      if (chunk.size() == MAX_IDS_PER_QUERY) {
+        loadChunk(chunk);
+        chunk.clear();
+        queries++;
+      }
+    }
+
+    if (!chunk.isEmpty()) {
+      loadChunk(chunk);
+      queries++;
+    }
+
+    return queries;
+  }
+
+  private void loadChunk(List<LocalContact> contacts) {
+    Map<Long, LocalContact> contactsById = new HashMap<>();
+    String[] ids = new String[contacts.size()];
+    StringBuilder placeholders = new StringBuilder();
 
-      return contact;
+    for (int i = 0; i < contacts.size(); i++) {
+      LocalContact contact = contacts.get(i);
+      contactsById.put(Long.valueOf(contact.rawContactId), contact);
+      ids[i] = contact.rawContactId;
+      if (i > 0) placeholders.append(',');
+      placeholders.append('?');
+    }
+
+    Cursor cursor = null;
+
+    try {
+      // One row per data item of each raw contact, plus one row with a null DATA_ID for raw contacts without data
+      cursor = resolver.query(RawContactsEntity.CONTENT_URI, DATA_PROJECTION,
+        RawContactsEntity._ID + " IN (" + placeholders + ")", ids,
+        null);
+
+      while (cursor.moveToNext()) {
+        if (cursor.isNull(1)) continue;
+        readData(cursor, contactsById.get(cursor.getLong(0)));
+      }
     } finally {
       if (cursor != null) cursor.close();
     }
   }
+
+  private void readData(Cursor cursor, LocalContact contact) {
+    // We can know what type of data this row contains by looking at its mime type
+    String mimeType = cursor.getString(2);
+    int subType = cursor.getInt(4);
+    if (StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)) contact.displayName = cursor.getString(3);
+    if (CommonDataKinds.Email.CONTENT_ITEM_TYPE.equals(mimeType)) contact.email = cursor.getString(3);
+    if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE.equals(mimeType) && CommonDataKinds.Phone.TYPE_WORK_MOBILE == subType) contact.phoneNumber = cursor.getString(3);
+    if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE.equals(mimeType) && CommonDataKinds.Phone.TYPE_WORK == subType) contact.fixedPhoneNumber = cursor.getString(3);
+    if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE.equals(mimeType) && CommonDataKinds.Phone.TYPE_OTHER == subType) contact.shortPhoneNumber = cursor.getString(3);
+  }
 }
@@ -7,15 +7,16 @@ import android.content.Context;
 import android.content.SyncResult;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.util.Log;
 import com.valtech.contactsync.api.ApiClient;
 import com.valtech.contactsync.api.BinaryResponse;
 import com.valtech.contactsync.api.UserInfoResponse;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static android.provider.ContactsContract.*;
 import static android.provider.ContactsContract.CommonDataKinds.GroupMembership;
@@ -29,296 +30,739 @@ public class LocalContactRepository {
   private static final Uri DATA_CONTENT_URI = Data.CONTENT_URI.buildUpon().appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
   private static final Uri RAW_CONTACT_CONTENT_URI = RawContacts.CONTENT_URI.buildUpon().appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
 
+  // Put in the queue of every country after the last remote contact
+  private static final UserInfoResponse END_OF_CONTACTS = new UserInfoResponse();
+
+  // Most remote contacts diffed at a time, changed ones are read from the provider with one query
+  private static final int CHUNK_SIZE = 250;
+
+  // Contacts without an image first, then starred, then most contacted, then longest unchecked
+  private static final Comparator<LocalContact> PHOTO_PRIORITY = new Comparator<LocalContact>() {
+    @Override
+    public int compare(LocalContact a, LocalContact b) {
+      boolean aHasPhoto = a.photoLastModified != null;
+      boolean bHasPhoto = b.photoLastModified != null;
+      if (aHasPhoto != bHasPhoto) return aHasPhoto ? 1 : -1;
+      if (a.starred != b.starred) return a.starred ? -1 : 1;
+      if (a.timesContacted != b.timesContacted) return a.timesContacted > b.timesContacted ? -1 : 1;
+      if (a.photoCheckedAt != b.photoCheckedAt) return a.photoCheckedAt < b.photoCheckedAt ? -1 : 1;
+      return 0;
+    }
+  };
+
   private final ContentResolver resolver;
   private final LocalContactReader localContactReader;
   private final GroupRepository groupRepository;
   private final String groupTitleFormat;
   private final ApiClient apiClient;
-  private int maxPhotoSize;
+  private final int batchSize;
+  private final int checkpointInterval;
+  private final int queueSize;
+  private final int pendingBatches;
+  private final int photoDownloadThreads;
+  private final int photoDownloadsPerHost;
+  private final PhotoCache photoCache;
+  private final PhotoQuality photoQuality;
+  private final int displayPhotoMinBytes;
+  private final SyncIndex syncIndex;
+  private volatile BatchWriter writer;
+  private final long photoRecheckMillis;
+  private volatile PhotoFetcher photoFetcher;
+  private volatile SyncMetrics metrics;
 
   public LocalContactRepository(Context context, ApiClient apiClient) {
+    this(context, apiClient, SyncIndex.get(context));
+  }
+
+  LocalContactRepository(Context context, ApiClient apiClient, SyncIndex syncIndex) {
     this.resolver = context.getContentResolver();
     this.groupTitleFormat = context.getString(R.string.group_title_format);
     this.localContactReader = new LocalContactReader(resolver);
     this.groupRepository = new GroupRepository(resolver);
     this.apiClient = apiClient;
+    this.batchSize = context.getResources().getInteger(R.integer.sync_batch_size);
+    this.checkpointInterval = context.getResources().getInteger(R.integer.sync_checkpoint_interval);
+    this.queueSize = context.getResources().getInteger(R.integer.sync_queue_size);
+    this.pendingBatches = context.getResources().getInteger(R.integer.sync_pending_batches);
+    this.photoDownloadThreads = context.getResources().getInteger(R.integer.photo_download_threads);
+    this.photoDownloadsPerHost = context.getResources().getInteger(R.integer.photo_downloads_per_host);
+    this.displayPhotoMinBytes = context.getResources().getInteger(R.integer.display_photo_min_kb) * 1024;
+    this.photoQuality = new PhotoQuality(context);
+    this.photoRecheckMillis = context.getResources().getInteger(R.integer.photo_recheck_hours) * 60 * 60 * 1000L;
+    this.syncIndex = syncIndex;
+    this.photoCache = new PhotoCache(new File(context.getCacheDir(), "photos"), context.getResources().getInteger(R.integer.photo_cache_size_kb) * 1024L);
+  }
+
+  /**
+   * Starts syncing remote contacts to the account while they are still being downloaded. Add them
+   * to the returned session as they are parsed and finish it once the last one has been added.
+   *
+   * The remote contacts are split by country and every country is diffed on a thread of its own,
+   * fed through a bounded queue. Batches of all countries are applied by one writer thread, so
+   * parsing, diffing and writing overlap while the queues cap what is kept in memory. Profile
+   * images are left to {@link #syncPhotos(Account, SyncResult, SyncMetrics)}.
+   *
+   * Remote contacts of a country before its start position are known to be synced by an earlier,
+   * interrupted run and are skipped. While syncing, the position up to which everything of a country
+   * has been applied is reported to the checkpoint handler, also when the sync is canceled.
+   *
+   * What is stored for each contact is read from the sync index. The provider is only read in full
+   * when its raw contacts no longer match the index, for instance after contacts were deleted
+   * outside of a sync.
+   */
+  public Session startSync(Account account, Map<String, Integer> startPositions, SyncResult syncResult, SyncMetrics metrics, CheckpointHandler checkpointHandler) {
+    this.metrics = metrics;
+    long start = SystemClock.elapsedRealtime();
+    ContactTable storedContacts = getStoredContacts(account, syncResult);
+    groupRepository.load(account);
+    metrics.countProviderCalls(2);
+    metrics.addTime("read_local", SystemClock.elapsedRealtime() - start);
+
+    writer = new BatchWriter(pendingBatches);
+    return new Session(account, new HashMap<>(startPositions), storedContacts, syncResult, checkpointHandler);
+  }
+
+  private ContactTable getStoredContacts(Account account, SyncResult syncResult) {
+    if (syncIndex.matches(localContactReader.getRawContactIds(account))) return syncIndex.getContacts();
+
+    Log.i(TAG, "Sync index does not match the stored contacts, reading them from the provider.");
+    List<LocalContact> duplicates = new ArrayList<>();
+    ContactTable storedContacts = localContactReader.getContacts(account, duplicates);
+    metrics.countProviderCalls(1);
+    // the index has one row per source id, it would never match while duplicates are stored
+    if (!duplicates.isEmpty()) deleteDuplicateContacts(account, duplicates, syncResult);
+    syncIndex.replace(storedContacts);
+    // read back, the index also knows which contacts have a picture URL
+    return syncIndex.getContacts();
+  }
+
+  private void deleteDuplicateContacts(Account account, List<LocalContact> duplicates, SyncResult syncResult) {
+    Log.i(TAG, "Deleting " + duplicates.size() + " raw contacts with the source id of another raw contact.");
+    BatchWriter writer = new BatchWriter(pendingBatches);
+    OperationBatch batch = new OperationBatch(resolver, account, batchSize, syncResult, metrics, writer, syncIndex);
+
+    try {
+      for (LocalContact duplicate : duplicates) {
+        batch.newEntry(duplicate.sourceId).add(buildRawContactDelete(duplicate.rawContactId));
+        syncResult.stats.numDeletes++;
+      }
+
+      batch.flushAndWait();
+    } finally {
+      writer.shutdown();
+    }
+  }
+
+  /**
+   * Checks the profile images of the contacts stored by earlier syncs, contacts without an image
+   * first, then starred and frequently contacted ones. Images checked within the recheck interval
+   * are skipped, so a canceled pass is continued by the next one. When the image of a raw contact
+   * was last checked is kept in its SYNC4.
+   */
+  public void syncPhotos(Account account, SyncResult syncResult, SyncMetrics metrics) throws InterruptedException {
+    this.metrics = metrics;
+    long start = SystemClock.elapsedRealtime();
+
+    if (!syncIndex.matches(localContactReader.getRawContactIds(account))) {
+      Log.i(TAG, "Sync index does not match the stored contacts, profile images are synced after the next contact sync.");
+      metrics.countProviderCalls(1);
+      return;
+    }
+
+    List<LocalContact> contacts = syncIndex.getContactsWithPicture();
+    localContactReader.loadPhotoPriorities(account, contacts);
+    int maxPhotoSize = getMaxPhotoSize();
+    metrics.countProviderCalls(3);
+
+    List<LocalContact> dueContacts = new ArrayList<>();
+    long now = System.currentTimeMillis();
+
+    for (LocalContact contact : contacts) {
+      if (now - contact.photoCheckedAt >= photoRecheckMillis) dueContacts.add(contact);
+    }
+
+    Collections.sort(dueContacts, PHOTO_PRIORITY);
+    metrics.addTime("read_local", SystemClock.elapsedRealtime() - start);
+    Log.i(TAG, "Checking " + dueContacts.size() + " of " + contacts.size() + " profile images.");
+
+    start = SystemClock.elapsedRealtime();
+    writer = new BatchWriter(pendingBatches);
+    photoFetcher = new PhotoFetcher(apiClient, photoCache, metrics, photoDownloadThreads, photoDownloadsPerHost);
+    OperationBatch batch = new OperationBatch(resolver, account, batchSize, syncResult, metrics, writer, syncIndex);
+    PhotoFetcher.Queue photos = photoFetcher.newQueue();
+    int next = 0;
+
+    try {
+      while (true) {
+        // keep only a few downloads queued per thread, so images are checked in order of priority
+        while (next < dueContacts.size() && photos.getPending() < photoDownloadThreads * 2) {
+          photos.submit(dueContacts.get(next++), maxPhotoSize);
+        }
+
+        PhotoFetcher.Result result = photos.take();
+        if (result == null) break;
+        if (syncPhoto(batch, result)) syncResult.stats.numUpdates++;
+        syncResult.stats.numEntries++;
+      }
+
+      Log.i(TAG, String.format("Profile images: %d from cache, %d downloaded, %d not modified.", metrics.photoCacheHits, metrics.photosDownloaded, metrics.photosNotModified));
+    } finally {
+      // keep the images checked so far, also when canceled
+      batch.flushAndWait();
+      photoFetcher.shutdown();
+      writer.shutdown();
+      photoFetcher = null;
+      metrics.addTime("photos", SystemClock.elapsedRealtime() - start);
+    }
+  }
+
+  public void cancelSync() {
+    PhotoFetcher fetcher = photoFetcher;
+    if (fetcher != null) fetcher.shutdown();
+  }
+
+  private void awaitTermination(ExecutorService executor) {
+    boolean interrupted = false;
+
+    while (true) {
+      try {
+        if (executor.awaitTermination(1, TimeUnit.MINUTES)) break;
+        Log.w(TAG, "Still waiting for country syncs to stop.");
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  private void addStats(SyncResult syncResult, SyncResult partitionResult) {
+    syncResult.stats.numInserts += partitionResult.stats.numInserts;
+    syncResult.stats.numUpdates += partitionResult.stats.numUpdates;
+    syncResult.stats.numDeletes += partitionResult.stats.numDeletes;
+    syncResult.stats.numEntries += partitionResult.stats.numEntries;
+    syncResult.stats.numSkippedEntries += partitionResult.stats.numSkippedEntries;
   }
 
-  public void syncContacts(Account account, List<UserInfoResponse> remoteContacts, SyncResult syncResult) {
-    Map<String, LocalContact> storedContacts = localContactReader.getContacts(account);
-    Set<String> activeEmails = new HashSet<>();
+  /**
+   * One sync run, fed with remote contacts by the thread parsing the directory. Always close it,
+   * also when the sync fails or is canceled.
+   */
+  public class Session {
+    private final Account account;
+    private final Map<String, Integer> startPositions;
+    private final ContactTable storedContacts;
+    private final SyncResult syncResult;
+    private final CheckpointHandler checkpointHandler;
+    private final Map<String, CountrySync> countrySyncs = new LinkedHashMap<>();
+    // source ids inserted by any country, a contact listed twice is only inserted once
+    private final Set<String> insertedSourceIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private boolean closed;
+
+    private Session(Account account, Map<String, Integer> startPositions, ContactTable storedContacts, SyncResult syncResult, CheckpointHandler checkpointHandler) {
+      this.account = account;
+      this.startPositions = startPositions;
+      this.storedContacts = storedContacts;
+      this.syncResult = syncResult;
+      this.checkpointHandler = checkpointHandler;
+    }
+
+    /**
+     * Hands the remote contact to the sync of its country, waits while that country is behind.
+     */
+    public void add(UserInfoResponse remoteContact) throws InterruptedException {
+      String country = remoteContact.countryCode != null ? remoteContact.countryCode : "";
+      CountrySync countrySync = countrySyncs.get(country);
+
+      if (countrySync == null) {
+        Integer startPosition = startPositions.get(country);
+        countrySync = new CountrySync(account, country, startPosition != null ? startPosition : 0, storedContacts, insertedSourceIds, checkpointHandler);
+        countrySync.future = executor.submit(countrySync);
+        countrySyncs.put(country, countrySync);
+      }
+
+      countrySync.put(remoteContact);
+    }
+
+    /**
+     * Waits for all countries to be synced. A full sync then deletes every stored contact that was
+     * not added, otherwise only remote contacts marked as deleted are removed.
+     */
+    public void finish(boolean fullSync) throws InterruptedException {
+      for (CountrySync countrySync : countrySyncs.values()) countrySync.put(END_OF_CONTACTS);
+      for (CountrySync countrySync : countrySyncs.values()) get(countrySync.future);
+
+      if (fullSync) {
+        BitSet activeRows = new BitSet(storedContacts.size());
+        for (CountrySync countrySync : countrySyncs.values()) activeRows.or(countrySync.activeRows);
+
+        OperationBatch batch = new OperationBatch(resolver, account, batchSize, syncResult, metrics, writer, syncIndex);
+
+        for (int row = activeRows.nextClearBit(0); row < storedContacts.size(); row = activeRows.nextClearBit(row + 1)) {
+          deleteInactiveContact(batch, storedContacts.getContact(row));
+          syncResult.stats.numDeletes++;
+          syncResult.stats.numEntries++;
+        }
+
+        batch.flushAndWait();
+      }
+    }
+
+    /**
+     * Stops the countries still syncing, they apply what they have and store a checkpoint. Waits
+     * until everything is applied.
+     */
+    public void close() {
+      if (closed) return;
+      closed = true;
+
+      executor.shutdownNow();
+      awaitTermination(executor);
+      writer.shutdown();
+
+      for (CountrySync countrySync : countrySyncs.values()) addStats(syncResult, countrySync.syncResult);
+    }
+
+    private void get(Future<?> future) throws InterruptedException {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Syncs the remote contacts of one country as they are taken from its queue, on a thread of its
+   * own.
+   */
+  private class CountrySync implements Callable<Void> {
+    private final Account account;
+    private final String country;
+    private final int startPosition;
+    private final ContactTable storedContacts;
+    private final Set<String> insertedSourceIds;
+    private final CheckpointHandler checkpointHandler;
+    private final BlockingQueue<UserInfoResponse> queue = new ArrayBlockingQueue<>(queueSize);
+    private final SyncResult syncResult = new SyncResult();
+    // rows of the stored contacts that are still in the directory
+    private final BitSet activeRows = new BitSet();
+    // unchanged contacts whose picture URL is not in the sync index yet
+    private final List<LocalContact> unindexedPictures = new ArrayList<>();
+    private Future<?> future;
+    private OperationBatch batch;
+    // position of the next remote contact of the country
+    private int position;
+
+    private CountrySync(Account account, String country, int startPosition, ContactTable storedContacts, Set<String> insertedSourceIds, CheckpointHandler checkpointHandler) {
+      this.account = account;
+      this.country = country;
+      this.startPosition = startPosition;
+      this.storedContacts = storedContacts;
+      this.insertedSourceIds = insertedSourceIds;
+      this.checkpointHandler = checkpointHandler;
+    }
+
+    /**
+     * Called by the parsing thread, fails instead of waiting forever if this country has failed.
+     */
+    private void put(UserInfoResponse remoteContact) throws InterruptedException {
+      while (!queue.offer(remoteContact, 1, TimeUnit.SECONDS)) {
+        if (!future.isDone()) continue;
+
+        try {
+          future.get();
+          throw new IllegalStateException("Sync of country " + country + " stopped early.");
+        } catch (ExecutionException e) {
+          throw new RuntimeException(e.getCause());
+        }
+      }
+    }
+
+    @Override
+    public Void call() throws InterruptedException {
+      batch = new OperationBatch(resolver, account, batchSize, syncResult, metrics, writer, syncIndex);
+      List<UserInfoResponse> chunk = new ArrayList<>();
+
+      try {
+        boolean end = false;
+
+        while (!end) {
+          // wait for the next remote contact, then also take the ones already parsed after it
+          chunk.clear();
+          chunk.add(queue.take());
+          queue.drainTo(chunk, CHUNK_SIZE - 1);
+
+          end = chunk.get(chunk.size() - 1) == END_OF_CONTACTS;
+          if (end) chunk.remove(chunk.size() - 1);
+
+          syncChunk(chunk);
+        }
+
+        batch.flushAndWait();
+        return null;
+      } catch (InterruptedException e) {
+        // keep what has been done so far, the next sync continues from here
+        checkpoint(Math.max(position, startPosition));
+        throw e;
+      }
+    }
+
+    private void syncChunk(List<UserInfoResponse> chunk) throws InterruptedException {
+      long start = SystemClock.elapsedRealtime();
+      long[] fingerprints = new long[chunk.size()];
+      int[] rows = new int[chunk.size()];
+      LocalContact[] localContacts = new LocalContact[chunk.size()];
+
+      // Only read name and phone numbers of the contacts that have changed since they were stored
+      List<LocalContact> changedContacts = new ArrayList<>();
+
+      for (int i = 0; i < chunk.size(); i++) {
+        UserInfoResponse remoteContact = chunk.get(i);
+        rows[i] = storedContacts.find(remoteContact.email);
+        if (position + i < startPosition || rows[i] < 0) continue;
+
+        fingerprints[i] = getFingerprint(remoteContact);
+        localContacts[i] = storedContacts.getContact(rows[i]);
+        if (fingerprints[i] != storedContacts.getFingerprint(rows[i])) changedContacts.add(localContacts[i]);
+      }
+
+      metrics.countProviderCalls(localContactReader.loadData(changedContacts));
+      metrics.addTime("read_local", SystemClock.elapsedRealtime() - start);
+
+      start = SystemClock.elapsedRealtime();
+
+      for (int i = 0; i < chunk.size(); i++) {
+        if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+        UserInfoResponse remoteContact = chunk.get(i);
 
-    maxPhotoSize = getMaxPhotoSize();
+        if (position < startPosition) {
+          // Contacts synced by an earlier run are still active, they must survive the deletion sweep
+          if (!remoteContact.deleted && rows[i] >= 0) activeRows.set(rows[i]);
+          position++;
+          continue;
+        }
 
-    for (UserInfoResponse remoteContact : remoteContacts) {
-      LocalContact localContact = storedContacts.get(remoteContact.email);
+        if (position > startPosition && (position - startPosition) % checkpointInterval == 0) {
+          checkpoint(position);
+        }
+
+        if (rows[i] < 0) fingerprints[i] = getFingerprint(remoteContact);
+        syncContact(remoteContact, rows[i], localContacts[i], fingerprints[i]);
+        position++;
+      }
+
+      if (!unindexedPictures.isEmpty()) {
+        syncIndex.update(unindexedPictures, Collections.<String>emptyList());
+        unindexedPictures.clear();
+      }
+
+      metrics.addTime("diff", SystemClock.elapsedRealtime() - start);
+    }
+
+    private void syncContact(UserInfoResponse remoteContact, int row, LocalContact localContact, long fingerprint) {
+      if (remoteContact.deleted) {
+        if (localContact == null) return;
+        deleteInactiveContact(batch, localContact);
+        syncResult.stats.numDeletes++;
+        syncResult.stats.numEntries++;
+        return;
+      }
 
       if (localContact != null) {
-        boolean updated = updateExistingContact(localContact, remoteContact);
-        if (updated) syncResult.stats.numUpdates++;
+        if (fingerprint != storedContacts.getFingerprint(row)) {
+          boolean updated = updateExistingContact(batch, localContact, remoteContact, Long.toHexString(fingerprint));
+          if (updated) syncResult.stats.numUpdates++;
+        } else if (remoteContact.picture != null && !storedContacts.hasPicture(row)) {
+          localContact.picture = remoteContact.picture;
+          unindexedPictures.add(localContact);
+        }
+
+        activeRows.set(row);
+      } else if (!insertedSourceIds.add(remoteContact.email)) {
+        Log.w(TAG, "Contact " + remoteContact.email + " is listed twice, inserting it once.");
+        return;
       } else {
         String groupTitle = String.format(groupTitleFormat, remoteContact.countryCode.toUpperCase());
         long groupId = groupRepository.ensureGroup(account, groupTitle);
-        insertNewContact(account, groupId, remoteContact);
+        insertNewContact(batch, account, groupId, remoteContact, Long.toHexString(fingerprint));
         syncResult.stats.numInserts++;
       }
 
       syncResult.stats.numEntries++;
-      activeEmails.add(remoteContact.email);
     }
 
-    for (LocalContact localContact : storedContacts.values()) {
-      if (activeEmails.contains(localContact.sourceId)) continue;
-      deleteInactiveContact(localContact);
-      syncResult.stats.numDeletes++;
-      syncResult.stats.numEntries++;
+    /**
+     * Applies the batch and reports the position before which all contacts have been applied.
+     */
+    private void checkpoint(int position) {
+      batch.flushAndWait();
+
+      // skipped contacts are retried by syncing from the start again
+      if (syncResult.stats.numSkippedEntries > 0) return;
+
+      checkpointHandler.onCheckpoint(country, position);
     }
   }
 
-  private boolean updateExistingContact(LocalContact localContact, UserInfoResponse remoteContact) {
+  private boolean updateExistingContact(OperationBatch batch, LocalContact localContact, UserInfoResponse remoteContact, String fingerprint) {
     Log.i(TAG, "Updating existing contact " + remoteContact.email + ".");
 
-    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    OperationBatch.Entry ops = batch.newEntry(remoteContact.email);
 
     syncName(localContact, remoteContact, ops);
     syncMobilePhoneNumber(localContact, remoteContact, ops);
     syncFixedPhoneNumber(localContact, remoteContact, ops);
     syncShortPhoneNumber(localContact, remoteContact, ops);
-    syncPhoto(localContact, remoteContact, ops);
 
-    if (ops.size() == 0) return false;
-
-    try {
-      resolver.applyBatch(ContactsContract.AUTHORITY, ops);
-      return true;
-    } catch (Exception e) {
-      throw new RuntimeException(e);
-    }
+    boolean updated = !ops.isEmpty();
+    ops.add(ContentProviderOperation.newUpdate(RAW_CONTACT_CONTENT_URI)
+      .withSelection(RawContacts._ID + " = ?", new String[] { localContact.rawContactId })
+      .withValue(RawContacts.SYNC2, fingerprint)
+      // the picture may have changed, the next profile image pass checks it first
+      .withValue(RawContacts.SYNC4, null));
+
+    localContact.fingerprint = fingerprint;
+    localContact.picture = remoteContact.picture;
+    ops.index(localContact);
+    return updated;
   }
 
-  private void syncName(LocalContact localContact, UserInfoResponse remoteContact, ArrayList<ContentProviderOperation> ops) {
+  private void syncName(LocalContact localContact, UserInfoResponse remoteContact, OperationBatch.Entry ops) {
     if (nullOrEmpty(localContact.displayName) && !nullOrEmpty(remoteContact.name)) {
       // missing on local contact, insert it
       Log.i(TAG, "Contact " + remoteContact.email + " now has a name, inserting.");
-      ops.add(buildDisplayNameInsert(remoteContact.name).withValue(Data.RAW_CONTACT_ID, localContact.rawContactId).build());
+      ops.add(buildDataDelete(localContact.rawContactId, StructuredName.CONTENT_ITEM_TYPE));
+      ops.add(buildDisplayNameInsert(remoteContact.name).withValue(Data.RAW_CONTACT_ID, localContact.rawContactId));
     } else if (!nullOrEmpty(localContact.displayName) && nullOrEmpty(remoteContact.name)) {
       // exists on local contact, but not on remote - delete it on local
       Log.i(TAG, "Contact " + remoteContact.email + " does not have a name any longer, deleting from local contact.");
-      ops.add(ContentProviderOperation.newDelete(DATA_CONTENT_URI)
-        .withSelection(
-          Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = ?",
-          new String[] { localContact.rawContactId, StructuredName.CONTENT_ITEM_TYPE })
-        .build());
+      ops.add(buildDataDelete(localContact.rawContactId, StructuredName.CONTENT_ITEM_TYPE));
     } else if (!nullOrEmpty(localContact.displayName) && !nullOrEmpty(remoteContact.name) && !localContact.displayName.equals(remoteContact.name)) {
       // exists on both local and remote contact but not equal, update it
       ops.add(ContentProviderOperation.newUpdate(DATA_CONTENT_URI)
         .withSelection(
           Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = ?",
           new String[] { localContact.rawContactId, StructuredName.CONTENT_ITEM_TYPE })
-        .withValue(StructuredName.DISPLAY_NAME, remoteContact.name)
-        .build());
+        .withValue(StructuredName.DISPLAY_NAME, remoteContact.name));
     }
   }
 
-  private void syncMobilePhoneNumber(LocalContact localContact, UserInfoResponse remoteContact, ArrayList<ContentProviderOperation> ops) {
+  private void syncMobilePhoneNumber(LocalContact localContact, UserInfoResponse remoteContact, OperationBatch.Entry ops) {
     if (nullOrEmpty(localContact.phoneNumber) && !nullOrEmpty(remoteContact.phoneNumber)) {
       // missing on local contact, insert it
       Log.i(TAG, "Contact " + remoteContact.email + " now has a mobile phone number, inserting.");
-      ops.add(buildPhoneNumberInsert(remoteContact.phoneNumber).withValue(Data.RAW_CONTACT_ID, localContact.rawContactId).build());
+      ops.add(buildPhoneNumberDelete(localContact.rawContactId, CommonDataKinds.Phone.TYPE_WORK_MOBILE));
+      ops.add(buildPhoneNumberInsert(remoteContact.phoneNumber).withValue(Data.RAW_CONTACT_ID, localContact.rawContactId));
     } else if (!nullOrEmpty(localContact.phoneNumber) && nullOrEmpty(remoteContact.phoneNumber)) {
       // exists on local contact, but not on remote - delete it on local
       Log.i(TAG, "Contact " + remoteContact.email + " does not have a mobile phone number any longer, deleting from local contact.");
-      ops.add(ContentProviderOperation.newDelete(DATA_CONTENT_URI)
-        .withSelection(
-          Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = ? AND " + CommonDataKinds.Phone.TYPE + " = ?",
-          new String[] { localContact.rawContactId, CommonDataKinds.Phone.CONTENT_ITEM_TYPE, String.valueOf(CommonDataKinds.Phone.TYPE_WORK_MOBILE) })
-        .build());
+      ops.add(buildPhoneNumberDelete(localContact.rawContactId, CommonDataKinds.Phone.TYPE_WORK_MOBILE));
     } else if (!nullOrEmpty(localContact.phoneNumber) && !nullOrEmpty(remoteContact.phoneNumber) && !localContact.phoneNumber.equals(remoteContact.phoneNumber)) {
       // exists on both local and remote contact but not equal, update it
       ops.add(ContentProviderOperation.newUpdate(DATA_CONTENT_URI)
         .withSelection(
           Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = ? AND " + CommonDataKinds.Phone.TYPE + " = ?",
           new String[] { localContact.rawContactId, CommonDataKinds.Phone.CONTENT_ITEM_TYPE, String.valueOf(CommonDataKinds.Phone.TYPE_WORK_MOBILE) })
-        .withValue(CommonDataKinds.Phone.NUMBER, remoteContact.phoneNumber)
-        .build());
+        .withValue(CommonDataKinds.Phone.NUMBER, remoteContact.phoneNumber));
     }
   }
 
-  private void syncFixedPhoneNumber(LocalContact localContact, UserInfoResponse remoteContact, ArrayList<ContentProviderOperation> ops) {
+  private void syncFixedPhoneNumber(LocalContact localContact, UserInfoResponse remoteContact, OperationBatch.Entry ops) {
     if (nullOrEmpty(localContact.fixedPhoneNumber) && !nullOrEmpty(remoteContact.fixedPhoneNumber)) {
       // missing on local contact, insert it
       Log.i(TAG, "Contact " + remoteContact.email + " now has a fixed phone number, inserting.");
-      ops.add(buildFixedPhoneNumberInsert(remoteContact.fixedPhoneNumber).withValue(Data.RAW_CONTACT_ID, localContact.rawContactId).build());
+      ops.add(buildPhoneNumberDelete(localContact.rawContactId, CommonDataKinds.Phone.TYPE_WORK));
+      ops.add(buildFixedPhoneNumberInsert(remoteContact.fixedPhoneNumber).withValue(Data.RAW_CONTACT_ID, localContact.rawContactId));
     } else if (!nullOrEmpty(localContact.fixedPhoneNumber) && nullOrEmpty(remoteContact.fixedPhoneNumber)) {
       // exists on local contact, but not on remote - delete it on local
       Log.i(TAG, "Contact " + remoteContact.email + " does not have a fixed phone number any longer, deleting from local contact.");
-      ops.add(ContentProviderOperation.newDelete(DATA_CONTENT_URI)
-        .withSelection(
-          Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = ? AND " + CommonDataKinds.Phone.TYPE + " = ?",
-          new String[] { localContact.rawContactId, CommonDataKinds.Phone.CONTENT_ITEM_TYPE, String.valueOf(CommonDataKinds.Phone.TYPE_WORK) })
-        .build());
+      ops.add(buildPhoneNumberDelete(localContact.rawContactId, CommonDataKinds.Phone.TYPE_WORK));
     } else if (!nullOrEmpty(localContact.fixedPhoneNumber) && !nullOrEmpty(remoteContact.fixedPhoneNumber) && !localContact.fixedPhoneNumber.equals(remoteContact.fixedPhoneNumber)) {
       // exists on both local and remote contact but not equal, update it
       ops.add(ContentProviderOperation.newUpdate(DATA_CONTENT_URI)
         .withSelection(
           Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = ? AND " + CommonDataKinds.Phone.TYPE + " = ?",
           new String[] { localContact.rawContactId, CommonDataKinds.Phone.CONTENT_ITEM_TYPE, String.valueOf(CommonDataKinds.Phone.TYPE_WORK) })
-        .withValue(CommonDataKinds.Phone.NUMBER, remoteContact.fixedPhoneNumber)
-        .build());
+        .withValue(CommonDataKinds.Phone.NUMBER, remoteContact.fixedPhoneNumber));
     }
   }
 
-  private void syncShortPhoneNumber(LocalContact localContact, UserInfoResponse remoteContact, ArrayList<ContentProviderOperation> ops) {
+  private void syncShortPhoneNumber(LocalContact localContact, UserInfoResponse remoteContact, OperationBatch.Entry ops) {
     String shortPhoneNumber = getShortPhoneNumber(remoteContact);
     if (nullOrEmpty(localContact.shortPhoneNumber) && !nullOrEmpty(shortPhoneNumber)) {
       // missing on local contact, insert it
       Log.i(TAG, "Contact " + remoteContact.email + " now has a short phone number, inserting.");
-      ops.add(buildShortPhoneNumberInsert(shortPhoneNumber).withValue(Data.RAW_CONTACT_ID, localContact.rawContactId).build());
+      ops.add(buildPhoneNumberDelete(localContact.rawContactId, CommonDataKinds.Phone.TYPE_OTHER));
+      ops.add(buildShortPhoneNumberInsert(shortPhoneNumber).withValue(Data.RAW_CONTACT_ID, localContact.rawContactId));
     } else if (!nullOrEmpty(localContact.shortPhoneNumber) && nullOrEmpty(shortPhoneNumber)) {
       // exists on local contact, but not on remote - delete it on local
       Log.i(TAG, "Contact " + remoteContact.email + " does not have a short phone number any longer, deleting from local contact.");
-      ops.add(ContentProviderOperation.newDelete(DATA_CONTENT_URI)
-        .withSelection(
-          Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = ? AND " + CommonDataKinds.Phone.TYPE + " = ?",
-          new String[] { localContact.rawContactId, CommonDataKinds.Phone.CONTENT_ITEM_TYPE, String.valueOf(CommonDataKinds.Phone.TYPE_OTHER) })
-        .build());
+      ops.add(buildPhoneNumberDelete(localContact.rawContactId, CommonDataKinds.Phone.TYPE_OTHER));
     } else if (!nullOrEmpty(localContact.shortPhoneNumber) && !nullOrEmpty(shortPhoneNumber) && !localContact.shortPhoneNumber.equals(shortPhoneNumber)) {
       // exists on both local and remote contact but not equal, update it
       ops.add(ContentProviderOperation.newUpdate(DATA_CONTENT_URI)
         .withSelection(
           Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = ? AND " + CommonDataKinds.Phone.TYPE + " = ?",
           new String[] { localContact.rawContactId, CommonDataKinds.Phone.CONTENT_ITEM_TYPE, String.valueOf(CommonDataKinds.Phone.TYPE_OTHER) })
-        .withValue(CommonDataKinds.Phone.NUMBER, shortPhoneNumber)
-        .build());
+        .withValue(CommonDataKinds.Phone.NUMBER, shortPhoneNumber));
     }
   }
 
-  private void syncPhoto(LocalContact localContact, UserInfoResponse remoteContact, ArrayList<ContentProviderOperation> ops) {
-    try {
-      BinaryResponse response = apiClient.downloadGravatarImage(remoteContact.picture, maxPhotoSize, localContact.photoLastModified);
+  /**
+   * Applies a checked profile image and records when it was checked. Returns whether the image
+   * changed. Failed downloads are not recorded, so they are retried by the next pass.
+   */
+  private boolean syncPhoto(OperationBatch batch, PhotoFetcher.Result result) {
+    LocalContact localContact = result.localContact;
+    long checkedAt = System.currentTimeMillis();
+
+    if (result.error != null) {
+      // network error during download - don't rethrow, let's not fail the whole sync for this
+      Log.e(TAG, "Failed to download profile image for " + localContact.sourceId + ".", result.error);
+      return false;
+    }
+
+    OperationBatch.Entry ops = batch.newEntry(localContact.sourceId);
+
+    if (!result.missing) {
+      BinaryResponse response = result.response;
 
       if (localContact.photoLastModified == null) {
         // missing on local contact, insert it
-        Log.i(TAG, "Contact " + remoteContact.email + " now has a profile image, inserting.");
-        ops.add(buildPhotoInsert(response.data).withValue(Data.RAW_CONTACT_ID, localContact.rawContactId).build());
-        ops.add(buildPhotoLastModifiedUpdate(localContact.rawContactId, response.lastModified));
-      } else if (!localContact.photoLastModified.equals(response.lastModified)) {
-        // newer version exist on remote contact, update local
-        Log.i(TAG, "Contact " + remoteContact.email + " has a new profile image, updating.");
-        ops.add(ContentProviderOperation.newUpdate(DATA_CONTENT_URI)
-          .withSelection(
-            Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = ?",
-            new String[] { localContact.rawContactId, CommonDataKinds.Photo.CONTENT_ITEM_TYPE })
-          .withValue(CommonDataKinds.Photo.PHOTO, response.data.toByteArray())
-          .build());
-        ops.add(buildPhotoLastModifiedUpdate(localContact.rawContactId, response.lastModified));
+        Log.i(TAG, "Contact " + localContact.sourceId + " now has a profile image, inserting.");
+        return syncPhotoData(ops, localContact, response, result.size, false, checkedAt);
+      } else if (!localContact.photoLastModified.equals(response.lastModified) || result.isUpgrade()) {
+        // newer version exist on remote contact, or the stored one is too small, update local
+        Log.i(TAG, "Contact " + localContact.sourceId + " has a new profile image, updating.");
+        return syncPhotoData(ops, localContact, response, result.size, true, checkedAt);
       }
-    } catch (NoSuchElementException e) {
-      if (nullOrEmpty(localContact.photoLastModified)) return; // contact has no image and has never had one
-      Log.i(TAG, "Contact " + remoteContact.email + " does not have a profile image any longer, deleting from local contact.");
+    } else if (!nullOrEmpty(localContact.photoLastModified)) {
+      Log.i(TAG, "Contact " + localContact.sourceId + " does not have a profile image any longer, deleting from local contact.");
 
       // exists on local contact, but not on remote - delete on local
-      ops.add(ContentProviderOperation.newDelete(DATA_CONTENT_URI)
+      ops.add(buildDataDelete(localContact.rawContactId, CommonDataKinds.Photo.CONTENT_ITEM_TYPE));
+      ops.add(buildPhotoStateUpdate(localContact.rawContactId, null, null, checkedAt));
+      localContact.photoLastModified = null;
+      localContact.photoSize = null;
+      ops.index(localContact);
+      return true;
+    }
+
+    // unchanged, or the contact has no image and has never had one
+    ops.add(ContentProviderOperation.newUpdate(RAW_CONTACT_CONTENT_URI)
+      .withSelection(RawContacts._ID + " = ?", new String[] { localContact.rawContactId })
+      .withValue(RawContacts.SYNC4, String.valueOf(checkedAt)));
+    return false;
+  }
+
+  private boolean syncPhotoData(OperationBatch.Entry ops, LocalContact localContact, BinaryResponse response, int size, boolean exists, long checkedAt) {
+    if (response.data.length >= displayPhotoMinBytes) {
+      // Large images are streamed to the provider instead of being carried by the batch, the provider
+      // inserts or replaces the photo row itself
+      ops.addDisplayPhoto(localContact.rawContactId, response.data);
+    } else if (exists) {
+      ops.add(ContentProviderOperation.newUpdate(DATA_CONTENT_URI)
         .withSelection(
           Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = ?",
           new String[] { localContact.rawContactId, CommonDataKinds.Photo.CONTENT_ITEM_TYPE })
-        .build());
-      ops.add(buildPhotoLastModifiedUpdate(localContact.rawContactId, null));
-    } catch (IOException e) {
-      // network error during download - don't rethrow, let's not fail the whole sync for this
-      Log.e(TAG, "Failed to download profile image for " + remoteContact.email + ".", e);
+        .withValue(CommonDataKinds.Photo.PHOTO, response.data));
+    } else {
+      ops.add(buildDataDelete(localContact.rawContactId, CommonDataKinds.Photo.CONTENT_ITEM_TYPE));
+      ops.add(buildPhotoInsert(response.data).withValue(Data.RAW_CONTACT_ID, localContact.rawContactId));
     }
+
+    ops.add(buildPhotoStateUpdate(localContact.rawContactId, response.lastModified, String.valueOf(size), checkedAt));
+    localContact.photoLastModified = response.lastModified;
+    localContact.photoSize = String.valueOf(size);
+    ops.index(localContact);
+    return true;
   }
 
-  private void insertNewContact(Account account, long groupId, UserInfoResponse remoteContact) {
+  private LocalContact insertNewContact(OperationBatch batch, Account account, long groupId, UserInfoResponse remoteContact, String fingerprint) {
     Log.i(TAG, "Inserting new contact " + remoteContact.email + ".");
 
-    String photoLastModified = null;
-    ByteArrayOutputStream photo = null;
-
-    try {
-      BinaryResponse response = apiClient.downloadGravatarImage(remoteContact.picture, maxPhotoSize, null);
-      photoLastModified = response.lastModified;
-      photo = response.data;
-    } catch (NoSuchElementException ignore) {
-    } catch (IOException e) {
-      // network error during download - don't rethrow, let's not fail the whole sync for this
-      Log.e(TAG, "Failed to download profile image for " + remoteContact.email + ".", e);
-    }
+    // The raw contact id is set once the insert has been applied, the profile image is added by the next profile image pass
+    LocalContact localContact = new LocalContact();
+    localContact.sourceId = remoteContact.email;
+    localContact.email = remoteContact.email;
+    localContact.fingerprint = fingerprint;
+    localContact.picture = remoteContact.picture;
 
-    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-    int backReferenceIndex = 0;
+    OperationBatch.Entry ops = batch.newEntry(remoteContact.email);
 
-    ops.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI.buildUpon().appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build())
+    ops.addRawContactInsert(ContentProviderOperation.newInsert(RAW_CONTACT_CONTENT_URI)
       .withValue(RawContacts.ACCOUNT_TYPE, account.type)
       .withValue(RawContacts.ACCOUNT_NAME, account.name)
       .withValue(RawContacts.SOURCE_ID, remoteContact.email)
-      .withValue(RawContacts.SYNC1, photoLastModified)
-      .build());
+      .withValue(RawContacts.SYNC2, fingerprint), localContact);
 
     // Email, always available from IDP
-    ops.add(ContentProviderOperation.newInsert(DATA_CONTENT_URI)
-      .withValueBackReference(Data.RAW_CONTACT_ID, backReferenceIndex)
+    ops.addWithRawContactReference(ContentProviderOperation.newInsert(DATA_CONTENT_URI)
       .withValue(Data.MIMETYPE, CommonDataKinds.Email.CONTENT_ITEM_TYPE)
       .withValue(CommonDataKinds.Email.DATA, remoteContact.email)
-      .withValue(CommonDataKinds.Email.TYPE, CommonDataKinds.Email.TYPE_WORK)
-      .build());
+      .withValue(CommonDataKinds.Email.TYPE, CommonDataKinds.Email.TYPE_WORK));
 
     // Name
     if (!nullOrEmpty(remoteContact.name)) {
-      ops.add(buildDisplayNameInsert(remoteContact.name)
-        .withValueBackReference(Data.RAW_CONTACT_ID, backReferenceIndex)
-        .build());
+      ops.addWithRawContactReference(buildDisplayNameInsert(remoteContact.name));
     }
 
     // Mobile phone
     if (!nullOrEmpty(remoteContact.phoneNumber)) {
-      ops.add(buildPhoneNumberInsert(remoteContact.phoneNumber)
-        .withValueBackReference(Data.RAW_CONTACT_ID, backReferenceIndex)
-        .build());
+      ops.addWithRawContactReference(buildPhoneNumberInsert(remoteContact.phoneNumber));
     }
 
     // Fixed phone
     if (!nullOrEmpty(remoteContact.fixedPhoneNumber)) {
-      ops.add(buildFixedPhoneNumberInsert(remoteContact.fixedPhoneNumber)
-        .withValueBackReference(Data.RAW_CONTACT_ID, backReferenceIndex)
-        .build());
+      ops.addWithRawContactReference(buildFixedPhoneNumberInsert(remoteContact.fixedPhoneNumber));
     }
 
     // Short phone
     String shortPhoneNumber = getShortPhoneNumber(remoteContact);
     if (shortPhoneNumber != null) {
-      ops.add(buildShortPhoneNumberInsert(shortPhoneNumber)
-        .withValueBackReference(Data.RAW_CONTACT_ID, backReferenceIndex)
-        .build());
-    }
-
-    // Photo
-    if (photo != null) {
-      ops.add(buildPhotoInsert(photo)
-        .withValueBackReference(Data.RAW_CONTACT_ID, backReferenceIndex)
-        .build());
+      ops.addWithRawContactReference(buildShortPhoneNumberInsert(shortPhoneNumber));
     }
 
     // It is nice if the contact is part of a group, and this makes the contact visible
-    ops.add(ContentProviderOperation.newInsert(DATA_CONTENT_URI)
-      .withValueBackReference(Data.RAW_CONTACT_ID, backReferenceIndex)
+    ops.addWithRawContactReference(ContentProviderOperation.newInsert(DATA_CONTENT_URI)
       .withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE)
-      .withValue(GroupMembership.GROUP_ROW_ID, groupId)
-      .build());
+      .withValue(GroupMembership.GROUP_ROW_ID, groupId));
 
-    try {
-      resolver.applyBatch(ContactsContract.AUTHORITY, ops);
-    } catch (Exception e) {
-      throw new RuntimeException(e);
-    }
+    ops.index(localContact);
+    return localContact;
   }
 
-  private ContentProviderOperation buildPhotoLastModifiedUpdate(String rawContactId, String lastModified) {
+  /**
+   * Stores the Last-Modified (SYNC1), the requested size (SYNC3) and when it was checked (SYNC4) of
+   * the image of a raw contact.
+   */
+  private ContentProviderOperation.Builder buildPhotoStateUpdate(String rawContactId, String lastModified, String size, long checkedAt) {
     return ContentProviderOperation.newUpdate(RAW_CONTACT_CONTENT_URI)
       .withSelection(RawContacts._ID + " = ?", new String[] { rawContactId })
       .withValue(RawContacts.SYNC1, lastModified)
-      .build();
+      .withValue(RawContacts.SYNC3, size)
+      .withValue(RawContacts.SYNC4, String.valueOf(checkedAt));
+  }
+
+  /**
+   * Deletes the data rows of a kind. Also added right before every data insert into an existing
+   * contact: a batch that fails after the provider committed some of its entries at a yield point
+   * is retried, and the insert must not add a second row then.
+   */
+  private ContentProviderOperation.Builder buildDataDelete(String rawContactId, String mimeType) {
+    return ContentProviderOperation.newDelete(DATA_CONTENT_URI)
+      .withSelection(
+        Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = ?",
+        new String[] { rawContactId, mimeType });
+  }
+
+  private ContentProviderOperation.Builder buildPhoneNumberDelete(String rawContactId, int type) {
+    return ContentProviderOperation.newDelete(DATA_CONTENT_URI)
+      .withSelection(
+        Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = ? AND " + CommonDataKinds.Phone.TYPE + " = ?",
+        new String[] { rawContactId, CommonDataKinds.Phone.CONTENT_ITEM_TYPE, String.valueOf(type) });
   }
 
   private ContentProviderOperation.Builder buildDisplayNameInsert(String displayName) {
@@ -348,10 +792,45 @@ public class LocalContactRepository {
       .withValue(CommonDataKinds.Phone.TYPE, CommonDataKinds.Phone.TYPE_OTHER);
   }
 
-  private ContentProviderOperation.Builder buildPhotoInsert(ByteArrayOutputStream photo) {
+  private ContentProviderOperation.Builder buildPhotoInsert(byte[] photo) {
     return ContentProviderOperation.newInsert(DATA_CONTENT_URI)
       .withValue(Data.MIMETYPE, CommonDataKinds.Photo.CONTENT_ITEM_TYPE)
-      .withValue(CommonDataKinds.Photo.PHOTO, photo.toByteArray());
+      .withValue(CommonDataKinds.Photo.PHOTO, photo);
+  }
+
+  /**
+   * A 64 bit FNV-1a hash over the synced fields of the remote contact, stored in SYNC2 of the raw
+   * contact. Contacts with an unchanged fingerprint are not diffed field by field.
+   */
+  private long getFingerprint(UserInfoResponse remoteContact) {
+    String[] fields = new String[] {
+      remoteContact.name,
+      remoteContact.phoneNumber,
+      remoteContact.fixedPhoneNumber,
+      getShortPhoneNumber(remoteContact),
+      remoteContact.picture
+    };
+
+    long hash = 0xcbf29ce484222325L;
+
+    for (String field : fields) {
+      String value = field != null ? field : "";
+
+      for (int i = 0; i < value.length(); i++) {
+        hash ^= value.charAt(i);
+        hash *= 0x100000001b3L;
+      }
+
+      // field separator, so moving characters between fields changes the hash
+      hash ^= 0xff;
+      hash *= 0x100000001b3L;
+    }
+
+    return hash;
+  }
+
+  public interface CheckpointHandler {
+    void onCheckpoint(String country, int position);
   }
 
   private boolean nullOrEmpty(String s) {
@@ -366,35 +845,33 @@ public class LocalContactRepository {
     return phoneNumber.substring(phoneNumber.length() - 4);
   }
 
-  private void deleteInactiveContact(LocalContact localContact) {
+  private void deleteInactiveContact(OperationBatch batch, LocalContact localContact) {
     Log.i(TAG, "Deleting contact " + localContact.sourceId + ".");
 
-    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-    ops.add(ContentProviderOperation.newDelete(
+    OperationBatch.Entry ops = batch.newEntry(localContact.sourceId);
+    ops.add(buildRawContactDelete(localContact.rawContactId));
+    ops.removeFromIndex();
+  }
+
+  private ContentProviderOperation.Builder buildRawContactDelete(String rawContactId) {
+    return ContentProviderOperation.newDelete(
       ContactsContract.RawContacts.CONTENT_URI.buildUpon()
-        .appendPath(localContact.rawContactId)
+        .appendPath(rawContactId)
           // Appending this query parameter is what actually deletes the raw contact.
           // Without it, the contact would just be "hidden", treated as deleted by the user but not yet synced to the server.
           // http://developer.android.com/reference/android/provider/ContactsContract.RawContacts.html
         .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
-        .build())
-      .build());
-
-    try {
-      resolver.applyBatch(ContactsContract.AUTHORITY, ops);
-    } catch (Exception e) {
-      throw new RuntimeException(e);
-    }
+        .build());
   }
 
   private int getMaxPhotoSize() {
     Uri uri = ContactsContract.DisplayPhoto.CONTENT_MAX_DIMENSIONS_URI;
-    String[] projection = new String[] { ContactsContract.DisplayPhoto.DISPLAY_MAX_DIM };
+    String[] projection = new String[] { ContactsContract.DisplayPhoto.DISPLAY_MAX_DIM, ContactsContract.DisplayPhoto.THUMBNAIL_MAX_DIM };
     Cursor cursor = resolver.query(uri, projection, null, null, null);
 
     try {
       cursor.moveToFirst();
-      return cursor.getInt(0);
+      return photoQuality.getPhotoSize(cursor.getInt(0), cursor.getInt(1));
     } finally {
       cursor.close();
     }
@@ -0,0 +1,359 @@
+package com.valtech.contactsync;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.content.SyncResult;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static android.provider.ContactsContract.Data;
+import static android.provider.ContactsContract.RawContacts;
+
+/**
+ * Collects content provider operations for many contacts and applies them in as few
+ * transactions as possible.
+ *
+ * Operations are grouped in entries, one per contact. An entry is always applied as a whole and
+ * the provider is allowed to yield between entries, so the contacts database is never locked for
+ * a full batch. If a batch fails it is split in halves and retried, until the entry causing the
+ * failure is isolated and skipped.
+ *
+ * Large profile images are streamed to the provider by the writer as well, right before the batch
+ * of their entry, so all writes of a sync go through one thread.
+ *
+ * Batches are applied by a {@link BatchWriter}, while the next one is being collected. Use
+ * {@link #flushAndWait()} before relying on what has been applied, like raw contact ids of inserts
+ * or the number of skipped entries.
+ */
+public class OperationBatch {
+  private static final String TAG = OperationBatch.class.getSimpleName();
+
+  private final ContentResolver resolver;
+  private final Account account;
+  private final int maxOperations;
+  private final SyncResult syncResult;
+  private final SyncMetrics metrics;
+  private final BatchWriter writer;
+  private final SyncIndex syncIndex;
+  private final List<Entry> entries = new ArrayList<>();
+  private final List<Future<?>> writes = new ArrayList<>();
+  private int size;
+
+  public OperationBatch(ContentResolver resolver, Account account, int maxOperations, SyncResult syncResult, SyncMetrics metrics, BatchWriter writer, SyncIndex syncIndex) {
+    this.resolver = resolver;
+    this.account = account;
+    this.maxOperations = maxOperations;
+    this.syncResult = syncResult;
+    this.metrics = metrics;
+    this.writer = writer;
+    this.syncIndex = syncIndex;
+  }
+
+  public Entry newEntry(String sourceId) {
+    if (size >= maxOperations) flush();
+    Entry entry = new Entry(sourceId);
+    entries.add(entry);
+    return entry;
+  }
+
+  public void flush() {
+    if (entries.isEmpty()) return;
+
+    final List<Entry> pending = new ArrayList<>(entries);
+    entries.clear();
+    size = 0;
+
+    writes.add(writer.submit(new Runnable() {
+      @Override
+      public void run() {
+        apply(withDisplayPhotosWritten(pending));
+      }
+    }));
+  }
+
+  /**
+   * Flushes and waits until every batch of this instance has been applied. Also waits when the
+   * thread is interrupted, the interrupt is kept.
+   */
+  public void flushAndWait() {
+    flush();
+    boolean interrupted = false;
+
+    for (Future<?> write : writes) {
+      while (true) {
+        try {
+          write.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          throw new RuntimeException(e.getCause());
+        }
+      }
+    }
+
+    writes.clear();
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  private void apply(List<Entry> entries) {
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    for (Entry entry : entries) entry.build(ops);
+    if (ops.isEmpty()) return;
+
+    ContentProviderResult[] results;
+
+    try {
+      results = applyBatch(ops);
+    } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+      // the provider reports invalid values of a contact with IllegalArgumentException and the like
+      if (entries.size() == 1) {
+        Log.e(TAG, "Failed to apply operations for contact " + entries.get(0).sourceId + ", skipping.", e);
+        syncResult.stats.numSkippedEntries++;
+        return;
+      }
+
+      Log.w(TAG, "Failed to apply batch of " + entries.size() + " contacts, splitting.", e);
+
+      // The provider may have committed the entries before a yield point, don't insert those twice
+      List<Entry> remaining = withoutCommittedInserts(entries);
+      int middle = remaining.size() / 2;
+      apply(remaining.subList(0, middle));
+      apply(remaining.subList(middle, remaining.size()));
+      return;
+    }
+
+    for (Entry entry : entries) entry.applied(results);
+    updateIndex(entries);
+  }
+
+  private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops) throws RemoteException, OperationApplicationException {
+    long start = SystemClock.elapsedRealtime();
+
+    try {
+      ContentProviderResult[] results = resolver.applyBatch(ContactsContract.AUTHORITY, ops);
+      metrics.countOperationsApplied(ops.size());
+      return results;
+    } finally {
+      metrics.countProviderCalls(1);
+      metrics.addTime("apply_batch", SystemClock.elapsedRealtime() - start);
+    }
+  }
+
+  /**
+   * Writes the display photos of the entries. Entries whose photo could not be written are left
+   * out, so the state of the photo is not recorded and it is tried again.
+   */
+  private List<Entry> withDisplayPhotosWritten(List<Entry> entries) {
+    List<Entry> written = new ArrayList<>();
+
+    for (Entry entry : entries) {
+      if (entry.displayPhoto == null || writeDisplayPhoto(entry.displayPhotoRawContactId, entry.displayPhoto)) written.add(entry);
+      entry.displayPhoto = null;
+    }
+
+    return written;
+  }
+
+  private boolean writeDisplayPhoto(String rawContactId, byte[] photo) {
+    Uri displayPhotoUri = RawContacts.CONTENT_URI.buildUpon()
+      .appendPath(rawContactId)
+      .appendPath(RawContacts.DisplayPhoto.CONTENT_DIRECTORY)
+      // as for every other write of the sync, so the provider does not mark the contact as dirty
+      .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+      .build();
+
+    metrics.countProviderCalls(1);
+
+    try {
+      AssetFileDescriptor fd = resolver.openAssetFileDescriptor(displayPhotoUri, "rw");
+      OutputStream out = fd.createOutputStream();
+
+      try {
+        out.write(photo);
+      } finally {
+        out.close(); // also closes the file descriptor
+      }
+
+      return true;
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write display photo of raw contact " + rawContactId + ".", e);
+      return false;
+    }
+  }
+
+  private List<Entry> withoutCommittedInserts(List<Entry> entries) {
+    List<String> sourceIds = new ArrayList<>();
+    StringBuilder placeholders = new StringBuilder();
+
+    for (Entry entry : entries) {
+      if (!entry.insertsRawContact) continue;
+      if (placeholders.length() > 0) placeholders.append(',');
+      placeholders.append('?');
+      sourceIds.add(entry.sourceId);
+    }
+
+    if (sourceIds.isEmpty()) return entries;
+
+    Map<String, Long> committed = new HashMap<>();
+    sourceIds.add(0, account.type);
+    Cursor cursor = null;
+
+    try {
+      cursor = resolver.query(RawContacts.CONTENT_URI,
+        new String[] { RawContacts.SOURCE_ID, RawContacts._ID },
+        RawContacts.ACCOUNT_TYPE + " = ? AND " + RawContacts.SOURCE_ID + " IN (" + placeholders + ")",
+        sourceIds.toArray(new String[sourceIds.size()]),
+        null);
+
+      while (cursor.moveToNext()) committed.put(cursor.getString(0), cursor.getLong(1));
+    } finally {
+      if (cursor != null) cursor.close();
+      metrics.countProviderCalls(1);
+    }
+
+    List<Entry> remaining = new ArrayList<>();
+    List<Entry> applied = new ArrayList<>();
+
+    for (Entry entry : entries) {
+      Long rawContactId = entry.insertsRawContact ? committed.get(entry.sourceId) : null;
+
+      if (rawContactId != null) {
+        entry.inserted(rawContactId);
+        applied.add(entry);
+        continue;
+      }
+
+      remaining.add(entry);
+    }
+
+    updateIndex(applied);
+    return remaining;
+  }
+
+  private void updateIndex(List<Entry> entries) {
+    List<LocalContact> contacts = new ArrayList<>();
+    List<String> removedSourceIds = new ArrayList<>();
+
+    for (Entry entry : entries) {
+      if (entry.indexedContact != null) contacts.add(entry.indexedContact);
+      if (entry.removesFromIndex) removedSourceIds.add(entry.sourceId);
+    }
+
+    if (!contacts.isEmpty() || !removedSourceIds.isEmpty()) syncIndex.update(contacts, removedSourceIds);
+  }
+
+  public class Entry {
+    private final String sourceId;
+    private final List<ContentProviderOperation.Builder> builders = new ArrayList<>();
+    private final List<Boolean> rawContactReferences = new ArrayList<>();
+    private boolean insertsRawContact;
+    private LocalContact insertedContact;
+    private LocalContact indexedContact;
+    private boolean removesFromIndex;
+    private String displayPhotoRawContactId;
+    private byte[] displayPhoto;
+    private int offset;
+
+    private Entry(String sourceId) {
+      this.sourceId = sourceId;
+    }
+
+    public boolean isEmpty() {
+      return builders.isEmpty();
+    }
+
+    public void add(ContentProviderOperation.Builder builder) {
+      add(builder, false);
+    }
+
+    /**
+     * Stores the contact in the sync index once the entry has been applied. The contact must hold
+     * the state the entry leaves in the provider.
+     */
+    public void index(LocalContact contact) {
+      indexedContact = contact;
+    }
+
+    /**
+     * Streams the photo to the display photo of the raw contact before the entry is applied. The
+     * entry is skipped if that fails.
+     */
+    public void addDisplayPhoto(String rawContactId, byte[] photo) {
+      displayPhotoRawContactId = rawContactId;
+      displayPhoto = photo;
+    }
+
+    /**
+     * Removes the contact from the sync index once the entry has been applied.
+     */
+    public void removeFromIndex() {
+      removesFromIndex = true;
+    }
+
+    /**
+     * Adds the insert of a new raw contact, must be the first operation of the entry. The id of the
+     * raw contact is set on the given contact once the batch has been applied.
+     */
+    public void addRawContactInsert(ContentProviderOperation.Builder builder, LocalContact contact) {
+      if (!builders.isEmpty()) throw new IllegalStateException("Raw contact insert must be the first operation.");
+      insertsRawContact = true;
+      insertedContact = contact;
+      add(builder, false);
+    }
+
+    /**
+     * Adds an operation that gets its RAW_CONTACT_ID from the raw contact inserted by this entry.
+     * The back reference is resolved when the batch is built, so it stays correct across flushes
+     * and retries.
+     */
+    public void addWithRawContactReference(ContentProviderOperation.Builder builder) {
+      if (!insertsRawContact) throw new IllegalStateException("Entry does not insert a raw contact.");
+      add(builder, true);
+    }
+
+    private void add(ContentProviderOperation.Builder builder, boolean rawContactReference) {
+      // Let the provider commit and yield to other writers between contacts
+      if (builders.isEmpty()) builder.withYieldAllowed(true);
+      builders.add(builder);
+      rawContactReferences.add(rawContactReference);
+      size++;
+    }
+
+    private void build(List<ContentProviderOperation> ops) {
+      offset = ops.size();
+
+      for (int i = 0; i < builders.size(); i++) {
+        ContentProviderOperation.Builder builder = builders.get(i);
+        if (rawContactReferences.get(i)) builder.withValueBackReference(Data.RAW_CONTACT_ID, offset);
+        ops.add(builder.build());
+      }
+    }
+
+    private void applied(ContentProviderResult[] results) {
+      if (insertsRawContact) inserted(ContentUris.parseId(results[offset].uri));
+    }
+
+    private void inserted(long rawContactId) {
+      if (insertedContact != null) insertedContact.rawContactId = String.valueOf(rawContactId);
+    }
+  }
+}
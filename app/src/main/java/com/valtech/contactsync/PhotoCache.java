@@ -0,0 +1,158 @@
+package com.valtech.contactsync;
+
+import android.util.Log;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Size bounded disk cache of profile images, keyed by picture URL and requested size. The least
+ * recently used images are evicted first. Each image is stored with its Last-Modified and ETag so
+ * it can be revalidated instead of downloaded again.
+ */
+public class PhotoCache {
+  private static final String TAG = PhotoCache.class.getSimpleName();
+
+  private final File directory;
+  private final long maxBytes;
+  private long size = -1;
+
+  public PhotoCache(File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  public synchronized Entry get(String url, int photoSize) {
+    File file = getFile(url, photoSize);
+    if (!file.exists()) return null;
+
+    DataInputStream in = null;
+
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      Entry entry = new Entry();
+      entry.lastModified = emptyToNull(in.readUTF());
+      entry.etag = emptyToNull(in.readUTF());
+      entry.validatedAt = in.readLong();
+      entry.data = new byte[in.readInt()];
+      in.readFully(entry.data);
+
+      file.setLastModified(System.currentTimeMillis()); // most recently used
+      return entry;
+    } catch (IOException e) {
+      Log.w(TAG, "Could not read cached profile image, removing it.", e);
+      delete(file);
+      return null;
+    } finally {
+      close(in);
+    }
+  }
+
+  public synchronized void put(String url, int photoSize, Entry entry) {
+    ensureSize();
+
+    File file = getFile(url, photoSize);
+    File tempFile = new File(directory, file.getName() + ".tmp");
+    DataOutputStream out = null;
+
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      out.writeUTF(nullToEmpty(entry.lastModified));
+      out.writeUTF(nullToEmpty(entry.etag));
+      out.writeLong(entry.validatedAt);
+      out.writeInt(entry.data.length);
+      out.write(entry.data);
+      out.close();
+      out = null;
+
+      delete(file);
+      if (!tempFile.renameTo(file)) throw new IOException("Could not rename " + tempFile + ".");
+      size += file.length();
+    } catch (IOException e) {
+      Log.w(TAG, "Could not cache profile image.", e);
+      delete(tempFile);
+    } finally {
+      close(out);
+    }
+
+    evict();
+  }
+
+  public synchronized void remove(String url, int photoSize) {
+    ensureSize();
+    delete(getFile(url, photoSize));
+  }
+
+  private void ensureSize() {
+    if (size >= 0) return;
+    if (!directory.exists() && !directory.mkdirs()) Log.w(TAG, "Could not create " + directory + ".");
+
+    size = 0;
+    for (File file : listFiles()) size += file.length();
+  }
+
+  private void evict() {
+    if (size <= maxBytes) return;
+
+    File[] files = listFiles();
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+      }
+    });
+
+    for (File file : files) {
+      if (size <= maxBytes) break;
+      delete(file);
+    }
+  }
+
+  private void delete(File file) {
+    long length = file.length();
+    if (file.delete() && size >= 0) size -= length;
+  }
+
+  private File[] listFiles() {
+    File[] files = directory.listFiles();
+    return files != null ? files : new File[0];
+  }
+
+  private File getFile(String url, int photoSize) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest((url + "?s=" + photoSize).getBytes("UTF-8"));
+      StringBuilder name = new StringBuilder();
+      for (byte b : digest) name.append(String.format("%02x", b));
+      return new File(directory, name.toString());
+    } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String emptyToNull(String s) {
+    return s.isEmpty() ? null : s;
+  }
+
+  private static String nullToEmpty(String s) {
+    return s != null ? s : "";
+  }
+
+  private static void close(Closeable closeable) {
+    if (closeable == null) return;
+
+    try {
+      closeable.close();
+    } catch (IOException ignore) {
+    }
+  }
+
+  public static class Entry {
+    public byte[] data;
+    public String lastModified;
+    public String etag;
+    public long validatedAt;
+  }
+}
@@ -0,0 +1,210 @@
+package com.valtech.contactsync;
+
+import android.net.Uri;
+import com.valtech.contactsync.api.ApiClient;
+import com.valtech.contactsync.api.BinaryResponse;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+
+/**
+ * Downloads profile images on a bounded pool of worker threads so the profile image pass never
+ * waits on one image at a time. Finished downloads are handed back to the thread that submitted
+ * them through the {@link Queue} they were submitted to.
+ */
+public class PhotoFetcher {
+  // Cached images younger than this are used without asking the server
+  private static final long CACHE_MAX_AGE_MILLIS = 12 * 60 * 60 * 1000;
+
+  private final ApiClient apiClient;
+  private final PhotoCache photoCache;
+  private final SyncMetrics metrics;
+  private final int maxPerHost;
+  private final ExecutorService executor;
+  private final Map<String, Semaphore> hostPermits = new HashMap<>();
+
+  public PhotoFetcher(ApiClient apiClient, PhotoCache photoCache, SyncMetrics metrics, int threads, int maxPerHost) {
+    this.apiClient = apiClient;
+    this.photoCache = photoCache;
+    this.metrics = metrics;
+    this.maxPerHost = maxPerHost;
+    this.executor = Executors.newFixedThreadPool(threads);
+  }
+
+  /**
+   * Returns a new queue for downloads whose results are handed to one consumer. All queues share
+   * the worker threads and the per host limit.
+   */
+  public Queue newQueue() {
+    return new Queue();
+  }
+
+  private BinaryResponse fetch(String url, int size, String lastModified) throws IOException {
+    PhotoCache.Entry cached = photoCache.get(url, size);
+
+    try {
+      if (cached == null) {
+        BinaryResponse response = download(url, size, lastModified, null);
+        if (response.data != null) photoCache.put(url, size, toCacheEntry(response));
+        return response;
+      }
+
+      if (System.currentTimeMillis() - cached.validatedAt < CACHE_MAX_AGE_MILLIS) {
+        metrics.countPhotoCacheHit();
+        return toResponse(cached);
+      }
+
+      // revalidate with what the cached image was downloaded with
+      BinaryResponse response = download(url, size, cached.lastModified, cached.etag);
+
+      if (response.data == null) {
+        metrics.countPhotoCacheHit();
+        cached.validatedAt = System.currentTimeMillis();
+        photoCache.put(url, size, cached);
+        return toResponse(cached);
+      }
+
+      photoCache.put(url, size, toCacheEntry(response));
+      return response;
+    } catch (NoSuchElementException e) {
+      if (cached != null) photoCache.remove(url, size);
+      throw e;
+    }
+  }
+
+  private BinaryResponse download(String url, int size, String lastModified, String etag) throws IOException {
+    BinaryResponse response = apiClient.downloadGravatarImage(url, size, lastModified, etag);
+    if (response.data != null) metrics.countPhotoDownloaded();
+    else metrics.countPhotoNotModified();
+    return response;
+  }
+
+  private PhotoCache.Entry toCacheEntry(BinaryResponse response) {
+    PhotoCache.Entry entry = new PhotoCache.Entry();
+    entry.data = response.data;
+    entry.lastModified = response.lastModified;
+    entry.etag = response.etag;
+    entry.validatedAt = System.currentTimeMillis();
+    return entry;
+  }
+
+  private BinaryResponse toResponse(PhotoCache.Entry entry) {
+    BinaryResponse response = new BinaryResponse();
+    response.data = entry.data;
+    response.lastModified = entry.lastModified;
+    response.etag = entry.etag;
+    return response;
+  }
+
+  /**
+   * Stops the worker threads, downloads that have not finished are abandoned.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private synchronized Semaphore getHostPermits(String url) {
+    String host = Uri.parse(url).getHost();
+    Semaphore permits = hostPermits.get(host);
+
+    if (permits == null) {
+      permits = new Semaphore(maxPerHost);
+      hostPermits.put(host, permits);
+    }
+
+    return permits;
+  }
+
+  public class Queue {
+    private final CompletionService<Result> completionService = new ExecutorCompletionService<>(executor);
+    private int pending;
+
+    private Queue() {
+    }
+
+    /**
+     * Downloads the image at the picture URL of the contact.
+     */
+    public void submit(final LocalContact localContact, final int maxSize) {
+      final Semaphore permits = getHostPermits(localContact.picture);
+
+      Callable<Result> download = new Callable<Result>() {
+        @Override
+        public Result call() throws Exception {
+          Result result = new Result(localContact, maxSize);
+          permits.acquire();
+
+          try {
+            // an image stored in a smaller size than wanted now is downloaded again, even if unchanged
+            String lastModified = result.isUpgrade() ? null : localContact.photoLastModified;
+            result.response = fetch(localContact.picture, maxSize, lastModified);
+          } catch (NoSuchElementException e) {
+            result.missing = true;
+          } catch (IOException e) {
+            result.error = e;
+          } finally {
+            permits.release();
+          }
+
+          return result;
+        }
+      };
+
+      try {
+        completionService.submit(download);
+        pending++;
+      } catch (RejectedExecutionException e) {
+        // the fetcher has been shut down because the sync was canceled
+      }
+    }
+
+    /**
+     * Returns the number of submitted downloads not handed out yet.
+     */
+    public int getPending() {
+      return pending;
+    }
+
+    /**
+     * Waits for the next finished download, returns null when all submitted downloads are handed out.
+     */
+    public Result take() throws InterruptedException {
+      if (pending == 0) return null;
+      Future<Result> future = completionService.take();
+      pending--;
+      return get(future);
+    }
+
+    private Result get(Future<Result> future) throws InterruptedException {
+      try {
+        return future.get();
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+  }
+
+  public static class Result {
+    public final LocalContact localContact;
+    public final int size;
+    public BinaryResponse response;
+    public boolean missing;
+    public IOException error;
+
+    private Result(LocalContact localContact, int size) {
+      this.localContact = localContact;
+      this.size = size;
+    }
+
+    /**
+     * Returns whether the stored image is smaller than the one downloaded. Images stored before
+     * sizes were recorded are not upgraded.
+     */
+    public boolean isUpgrade() {
+      return localContact.photoLastModified != null && localContact.photoSize != null && Integer.parseInt(localContact.photoSize) < size;
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.valtech.contactsync;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.util.Log;
+import com.valtech.contactsync.setting.Settings;
+
+/**
+ * Picks the size of the profile images to download, from the photo quality setting and, when it is
+ * set to automatic, from the network and battery state.
+ */
+public class PhotoQuality {
+  private static final String TAG = PhotoQuality.class.getSimpleName();
+
+  public static final String AUTO = "auto";
+  public static final String THUMBNAIL = "thumbnail";
+  public static final String MEDIUM = "medium";
+  public static final String FULL = "full";
+
+  // Below this battery level only thumbnails are downloaded, unless the device is charging
+  private static final int LOW_BATTERY_PERCENT = 20;
+
+  private final Context context;
+  private final int mediumSize;
+
+  public PhotoQuality(Context context) {
+    this.context = context;
+    this.mediumSize = context.getResources().getInteger(R.integer.photo_medium_size);
+  }
+
+  public int getPhotoSize(int displayMaxSize, int thumbnailMaxSize) {
+    String quality = Settings.getPhotoQuality(context);
+    if (AUTO.equals(quality)) quality = getAutoQuality();
+    Log.i(TAG, "Using photo quality " + quality + ".");
+
+    if (THUMBNAIL.equals(quality)) return thumbnailMaxSize;
+    if (MEDIUM.equals(quality)) return Math.min(mediumSize, displayMaxSize);
+    return displayMaxSize;
+  }
+
+  /**
+   * Returns whether profile images may be synced now, on an unmetered network or while charging.
+   */
+  public boolean isPhotoSyncAllowed() {
+    return !isMetered() || isCharging(getBatteryState());
+  }
+
+  private String getAutoQuality() {
+    Intent battery = getBatteryState();
+    boolean charging = isCharging(battery);
+    boolean lowBattery = false;
+
+    if (battery != null) {
+      int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+      int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+      lowBattery = level >= 0 && scale > 0 && level * 100 / scale < LOW_BATTERY_PERCENT;
+    }
+
+    if (isMetered() || (lowBattery && !charging)) return THUMBNAIL;
+    return charging ? FULL : MEDIUM;
+  }
+
+  private Intent getBatteryState() {
+    return context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+  }
+
+  private boolean isCharging(Intent battery) {
+    return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+  }
+
+  private boolean isMetered() {
+    ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) return connectivityManager.isActiveNetworkMetered();
+
+    NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+    return network == null || (network.getType() != ConnectivityManager.TYPE_WIFI && network.getType() != ConnectivityManager.TYPE_ETHERNET);
+  }
+}
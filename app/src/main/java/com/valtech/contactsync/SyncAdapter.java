@@ -2,75 +2,318 @@ package com.valtech.contactsync;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
+import android.accounts.AuthenticatorException;
+import android.accounts.OperationCanceledException;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SyncResult;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.text.TextUtils;
 import android.util.Log;
 import com.valtech.contactsync.api.ApiClient;
+import com.valtech.contactsync.api.DirectoryResponse;
+import com.valtech.contactsync.api.InvalidTokenException;
 import com.valtech.contactsync.api.OAuthException;
+import com.valtech.contactsync.api.SyncMarker;
+import com.valtech.contactsync.api.UserInfoHandler;
 import com.valtech.contactsync.api.UserInfoResponse;
 import com.valtech.contactsync.setting.Settings;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 public class SyncAdapter extends AbstractThreadedSyncAdapter {
   private static final String TAG = SyncAdapter.class.getSimpleName();
 
+  // Comma separated emails or country codes, a sync requested with either only syncs those
+  public static final String EXTRA_CONTACTS = "contacts";
+  public static final String EXTRA_COUNTRIES = "countries";
+
+  // Set on the periodic sync that only checks profile images, the contact sync leaves them alone
+  public static final String EXTRA_PHOTOS_ONLY = "photos_only";
+
   private final ApiClient apiClient;
   private final LocalContactRepository contactRepository;
+  private final SyncHistory syncHistory;
+  private final PhotoQuality photoQuality;
+  private final long photoSyncIntervalSeconds;
 
   public SyncAdapter(Context context) {
     super(context, true);
     this.apiClient = new ApiClient(context);
     this.contactRepository = new LocalContactRepository(context, apiClient);
+    this.syncHistory = new SyncHistory(context);
+    this.photoQuality = new PhotoQuality(context);
+    this.photoSyncIntervalSeconds = context.getResources().getInteger(R.integer.photo_sync_interval_hours) * 60 * 60L;
   }
 
   @Override
   public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
+    SyncMetrics metrics = new SyncMetrics(getAppVersion());
+    long bytesReceived = apiClient.getBytesReceived();
+    long bytesDecoded = apiClient.getBytesDecoded();
+    String outcome = "error";
+
     try {
+      if (extras.getBoolean(EXTRA_PHOTOS_ONLY)) {
+        outcome = syncPhotos(account, syncResult, metrics);
+        return;
+      }
+
       Log.i(TAG, "Starting contact sync.");
 
       AccountManager accountManager = AccountManager.get(getContext());
 
-      String accessToken = accountManager.blockingGetAuthToken(account, "access_token", true);
-      if (accessToken == null) throw new NoAccessTokenException();
-      accountManager.invalidateAuthToken(account.type, accessToken); // only use access token once
+      long start = SystemClock.elapsedRealtime();
+      String accessToken = getAccessToken(accountManager, account);
+      metrics.addTime("access_token", SystemClock.elapsedRealtime() - start);
+
+      final SyncState syncState = new SyncState(getContext(), account);
+      final Set<String> enabledCountries = Settings.getEnabledCountries(getContext());
+      final String countries = TextUtils.join(",", enabledCountries);
+      SyncMarker marker = syncState.getMarker(countries);
+
+      final Set<String> requestedContacts = getExtraValues(extras, EXTRA_CONTACTS);
+      Set<String> requestedCountries = getExtraValues(extras, EXTRA_COUNTRIES);
+      boolean partialSync = requestedContacts != null || requestedCountries != null;
+
+      final Set<String> syncedCountries = new LinkedHashSet<>(enabledCountries);
+      if (requestedCountries != null) syncedCountries.retainAll(requestedCountries);
+
+      if (partialSync && syncedCountries.isEmpty()) {
+        Log.i(TAG, "None of the requested countries " + requestedCountries + " are enabled.");
+        outcome = "skipped";
+        return;
+      }
+
+      // a partial sync asks for what changed since the last complete sync, limited to its countries
+      String queriedCountries = TextUtils.join(",", syncedCountries);
+      if (partialSync) Log.i(TAG, "Syncing only contacts " + requestedContacts + " of countries " + syncedCountries + ".");
 
       Log.i(TAG, "Fetching remote contacts from resource server.");
-      List<UserInfoResponse> remoteContacts = apiClient.getUserInfoResources(accessToken);
-      Log.i(TAG, String.format("Got %d remote contacts.", remoteContacts.size()));
+      ContactStream stream = new ContactStream(account, syncState, countries, syncedCountries, requestedContacts, partialSync, syncResult, metrics);
+      start = SystemClock.elapsedRealtime();
+
+      try {
+        DirectoryResponse response;
+
+        try {
+          response = apiClient.getUserInfoResources(accessToken, marker, queriedCountries, stream);
+        } catch (InvalidTokenException e) {
+          // the cached token was revoked or expired early, get a new one and try once more
+          Log.i(TAG, "Access token rejected, fetching a new one.");
+          accountManager.invalidateAuthToken(account.type, accessToken);
+          accessToken = getAccessToken(accountManager, account);
+          response = apiClient.getUserInfoResources(accessToken, marker, queriedCountries, stream);
+        }
+
+        // the response is parsed and diffed while it is downloaded, so this includes both
+        metrics.addTime("directory", SystemClock.elapsedRealtime() - start);
+
+        if (response.notModified) {
+          Log.i(TAG, "Remote contacts not modified since last sync.");
+          outcome = "not_modified";
+          return;
+        }
 
-      List<UserInfoResponse> filteredRemoteContacts = filter(remoteContacts);
+        String format = response.delta ? "Got %d changed remote contacts, %d to sync." : "Got %d remote contacts, %d to sync.";
+        Log.i(TAG, String.format(format, response.count, stream.count));
 
-      contactRepository.syncContacts(account, filteredRemoteContacts, syncResult);
+        // a partial sync never deletes contacts missing from the response and leaves the marker
+        // alone, so the next complete sync still sees everything that changed since the last one
+        stream.finish(!partialSync && !response.delta);
+
+        if (partialSync) {
+          Log.i(TAG, "Partial sync complete: " + syncResult.stats + ".");
+          schedulePhotoSync(account, syncResult);
+          outcome = "complete";
+          return;
+        }
+
+        syncState.clearCheckpoints();
+
+        // contacts that failed will be retried by a full sync
+        if (syncResult.stats.numSkippedEntries == 0) syncState.setMarker(response.marker, countries, !response.delta);
+      } finally {
+        stream.close();
+      }
 
       Log.i(TAG, "Sync complete: " + syncResult.stats + ".");
+      schedulePhotoSync(account, syncResult);
+      outcome = "complete";
+    } catch (InterruptedException e) {
+      Log.i(TAG, "Sync canceled.");
+      outcome = "canceled";
     } catch (NoAccessTokenException e) {
       Log.i(TAG, "No access token.");
       syncResult.stats.numAuthExceptions = 1;
+      outcome = "auth_error";
     } catch (OAuthException e) {
       Log.e(TAG, "OAuth exception during sync.", e);
       syncResult.stats.numAuthExceptions = 1;
+      outcome = "auth_error";
     } catch (Exception e) {
       Log.e(TAG, "Unknown error during sync.", e);
       syncResult.databaseError = true;
+    } finally {
+      metrics.addBytesDownloaded(apiClient.getBytesReceived() - bytesReceived, apiClient.getBytesDecoded() - bytesDecoded);
+      metrics.finish(syncResult, outcome);
+      syncHistory.add(metrics);
+      Log.i(TAG, "Sync metrics: " + SyncHistory.toJson(metrics));
+    }
+  }
+
+  @Override
+  public void onSyncCanceled() {
+    // stop outstanding image downloads before the sync thread is interrupted
+    contactRepository.cancelSync();
+    super.onSyncCanceled();
+  }
+
+  /**
+   * Checks the profile images of the synced contacts, only on an unmetered network or while
+   * charging. Returns the outcome of the sync.
+   */
+  private String syncPhotos(Account account, SyncResult syncResult, SyncMetrics metrics) throws InterruptedException {
+    if (!photoQuality.isPhotoSyncAllowed()) {
+      Log.i(TAG, "Metered network and not charging, leaving profile images for later.");
+      return "skipped";
     }
+
+    Log.i(TAG, "Starting profile image sync.");
+    contactRepository.syncPhotos(account, syncResult, metrics);
+    Log.i(TAG, "Profile image sync complete: " + syncResult.stats + ".");
+    return "complete";
   }
 
-  private List<UserInfoResponse> filter(List<UserInfoResponse> contacts) {
-    List<UserInfoResponse> list = new ArrayList<>();
+  /**
+   * Makes sure profile images are checked periodically, and right away when contacts were added
+   * or changed.
+   */
+  private void schedulePhotoSync(Account account, SyncResult syncResult) {
+    Bundle photoExtras = new Bundle();
+    photoExtras.putBoolean(EXTRA_PHOTOS_ONLY, true);
+    ContentResolver.addPeriodicSync(account, ContactsContract.AUTHORITY, photoExtras, photoSyncIntervalSeconds);
+
+    if (syncResult.stats.numInserts > 0 || syncResult.stats.numUpdates > 0) {
+      ContentResolver.requestSync(account, ContactsContract.AUTHORITY, photoExtras);
+    }
+  }
+
+  /**
+   * Filters the remote contacts while the directory is parsed and hands them to the contact
+   * repository, which syncs them while the rest of the directory is still being downloaded.
+   */
+  private class ContactStream implements UserInfoHandler {
+    private final Account account;
+    private final SyncState syncState;
+    private final String countries;
+    private final Set<String> syncedCountries;
+    private final Set<String> requestedContacts;
+    private final boolean partialSync;
+    private final SyncResult syncResult;
+    private final SyncMetrics metrics;
+    private LocalContactRepository.Session session;
+    private int count;
+
+    private ContactStream(Account account, SyncState syncState, String countries, Set<String> syncedCountries, Set<String> requestedContacts, boolean partialSync, SyncResult syncResult, SyncMetrics metrics) {
+      this.account = account;
+      this.syncState = syncState;
+      this.countries = countries;
+      this.syncedCountries = syncedCountries;
+      this.requestedContacts = requestedContacts;
+      this.partialSync = partialSync;
+      this.syncResult = syncResult;
+      this.metrics = metrics;
+    }
+
+    @Override
+    public void start(DirectoryResponse response) {
+      final SyncMarker marker = response.marker;
+      final Map<String, Integer> positions = partialSync ? new HashMap<String, Integer>() : syncState.getCheckpoints(marker, countries);
+      if (!positions.isEmpty()) Log.i(TAG, "Resuming interrupted sync at " + positions + ".");
+
+      session = contactRepository.startSync(account, positions, syncResult, metrics, new LocalContactRepository.CheckpointHandler() {
+        @Override
+        public void onCheckpoint(String country, int position) {
+          // a partial sync leaves the checkpoints of the last complete sync alone
+          if (partialSync) return;
+
+          // called from the thread syncing the country
+          synchronized (positions) {
+            positions.put(country, position);
+            syncState.setCheckpoints(marker, countries, positions);
+          }
+        }
+      });
+    }
+
+    @Override
+    public void handle(UserInfoResponse userInfo) throws InterruptedException {
+      // filter while parsing so contacts from other countries are never kept, in case the server
+      // does not filter by country
+      if (requestedContacts != null && !requestedContacts.contains(userInfo.email)) return;
+      if (!userInfo.deleted && !syncedCountries.contains(userInfo.countryCode)) return;
 
-    for (UserInfoResponse c : contacts) {
-      if (Settings.isSyncEnabled(getContext(), c.countryCode)) list.add(c);
-      
       // enable row below to limit the accounts to sync (for development)
-      //if (list.size() > 5) break;
+      //if (count >= 5) return;
+
+      session.add(userInfo);
+      count++;
+    }
+
+    private void finish(boolean fullSync) throws InterruptedException {
+      session.finish(fullSync);
+      session.close();
     }
 
-    return list;
+    private void close() {
+      if (session != null) session.close();
+    }
+  }
+
+  /**
+   * Returns the comma separated values of the extra, or null if it is not set.
+   */
+  private Set<String> getExtraValues(Bundle extras, String key) {
+    String value = extras.getString(key);
+    if (TextUtils.isEmpty(value)) return null;
+
+    Set<String> values = new HashSet<>();
+    for (String item : value.split(",")) values.add(item.trim());
+    return values;
+  }
+
+  /**
+   * Returns the access token cached by AccountManager, or a new one if the cached token is about
+   * to expire.
+   */
+  private String getAccessToken(AccountManager accountManager, Account account) throws OperationCanceledException, IOException, AuthenticatorException {
+    if (Authenticator.isAccessTokenExpiring(accountManager, account)) {
+      String expiringToken = accountManager.peekAuthToken(account, "access_token");
+      if (expiringToken != null) accountManager.invalidateAuthToken(account.type, expiringToken);
+    }
+
+    String accessToken = accountManager.blockingGetAuthToken(account, "access_token", true);
+    if (accessToken == null) throw new NoAccessTokenException();
+    return accessToken;
+  }
+
+  private String getAppVersion() {
+    try {
+      return getContext().getPackageManager().getPackageInfo(getContext().getPackageName(), 0).versionName;
+    } catch (PackageManager.NameNotFoundException e) {
+      return null;
+    }
   }
 
   public static class NoAccessTokenException extends RuntimeException {
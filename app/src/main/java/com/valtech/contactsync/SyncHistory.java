@@ -0,0 +1,51 @@
+package com.valtech.contactsync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The metrics of the most recent sync runs, oldest first, kept in private preferences so runs
+ * can be compared across app versions.
+ */
+public class SyncHistory {
+  private static final Gson GSON = new Gson();
+  private static final String PREFS_NAME = "sync_history";
+  private static final String RUNS = "runs";
+  private static final int MAX_RUNS = 20;
+
+  private final SharedPreferences prefs;
+
+  public SyncHistory(Context context) {
+    this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+  }
+
+  public synchronized void add(SyncMetrics metrics) {
+    List<SyncMetrics> runs = getRuns();
+    runs.add(metrics);
+    while (runs.size() > MAX_RUNS) runs.remove(0);
+    prefs.edit().putString(RUNS, GSON.toJson(runs)).apply();
+  }
+
+  public synchronized List<SyncMetrics> getRuns() {
+    String json = prefs.getString(RUNS, null);
+    if (json == null) return new ArrayList<>();
+    return GSON.fromJson(json, new TypeToken<ArrayList<SyncMetrics>>() {}.getType());
+  }
+
+  /**
+   * Returns the kept runs as a JSON array, oldest first.
+   */
+  public synchronized String toJson() {
+    String json = prefs.getString(RUNS, null);
+    return json != null ? json : "[]";
+  }
+
+  public static String toJson(SyncMetrics metrics) {
+    return GSON.toJson(metrics);
+  }
+}
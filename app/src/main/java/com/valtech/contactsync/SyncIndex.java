@@ -0,0 +1,228 @@
+package com.valtech.contactsync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What the sync has stored in the contacts provider, kept in a private database so a sync can diff
+ * without reading every raw contact from the provider. It is updated with every applied batch and
+ * rebuilt from the provider when the raw contacts of the account no longer match it.
+ *
+ * It also keeps the picture URL of each contact, which the provider does not have, for the profile
+ * image pass.
+ */
+public class SyncIndex extends SQLiteOpenHelper {
+  private static final String DATABASE_NAME = "sync_index.db";
+  private static final int DATABASE_VERSION = 2;
+
+  private static final String CONTACTS = "contacts";
+  private static final String SOURCE_ID = "source_id";
+  private static final String RAW_CONTACT_ID = "raw_contact_id";
+  private static final String FINGERPRINT = "fingerprint";
+  private static final String PHOTO_LAST_MODIFIED = "photo_last_modified";
+  private static final String PHOTO_SIZE = "photo_size";
+  private static final String PICTURE = "picture";
+
+  // SQLite allows 999 arguments per query
+  private static final int MAX_IDS_PER_DELETE = 500;
+
+  private static SyncIndex instance;
+
+  SyncIndex(Context context) {
+    super(context, DATABASE_NAME, null, DATABASE_VERSION);
+  }
+
+  /**
+   * Returns the index of the process, the sync and the settings share one connection to it.
+   */
+  public static synchronized SyncIndex get(Context context) {
+    if (instance == null) instance = new SyncIndex(context.getApplicationContext());
+    return instance;
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + CONTACTS + " (" +
+      SOURCE_ID + " TEXT PRIMARY KEY, " +
+      RAW_CONTACT_ID + " INTEGER NOT NULL, " +
+      FINGERPRINT + " TEXT, " +
+      PHOTO_LAST_MODIFIED + " TEXT, " +
+      PHOTO_SIZE + " TEXT, " +
+      PICTURE + " TEXT)");
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    // pictures are filled in by the next contact sync
+    if (oldVersion < 2) db.execSQL("ALTER TABLE " + CONTACTS + " ADD COLUMN " + PICTURE + " TEXT");
+  }
+
+  /**
+   * Returns whether the index holds exactly the given raw contact ids. Only the ids are read, which
+   * is much less than reading the raw contacts themselves.
+   */
+  public boolean matches(long[] rawContactIds) {
+    long[] sorted = rawContactIds.clone();
+    Arrays.sort(sorted);
+
+    Cursor cursor = getReadableDatabase().query(CONTACTS, new String[] { RAW_CONTACT_ID }, null, null, null, null, RAW_CONTACT_ID);
+
+    try {
+      if (cursor.getCount() != sorted.length) return false;
+
+      for (int i = 0; cursor.moveToNext(); i++) {
+        if (cursor.getLong(0) != sorted[i]) return false;
+      }
+
+      return true;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  public ContactTable getContacts() {
+    Cursor cursor = getReadableDatabase().query(CONTACTS,
+      new String[] { SOURCE_ID, RAW_CONTACT_ID, FINGERPRINT, PHOTO_LAST_MODIFIED, PHOTO_SIZE, PICTURE },
+      null, null, null, null, null);
+
+    try {
+      ContactTable contacts = new ContactTable(cursor.getCount());
+
+      while (cursor.moveToNext()) {
+        contacts.add(cursor.getLong(1), cursor.getString(0), cursor.getString(2), cursor.getString(3), cursor.getString(4), !cursor.isNull(5));
+      }
+
+      return contacts;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Returns the contacts that have a picture URL, for the profile image pass.
+   */
+  public List<LocalContact> getContactsWithPicture() {
+    Cursor cursor = getReadableDatabase().query(CONTACTS,
+      new String[] { SOURCE_ID, RAW_CONTACT_ID, FINGERPRINT, PHOTO_LAST_MODIFIED, PHOTO_SIZE, PICTURE },
+      PICTURE + " IS NOT NULL", null, null, null, null);
+
+    try {
+      List<LocalContact> contacts = new ArrayList<>();
+
+      while (cursor.moveToNext()) {
+        LocalContact contact = new LocalContact();
+        contact.sourceId = cursor.getString(0);
+        contact.rawContactId = String.valueOf(cursor.getLong(1));
+        contact.fingerprint = cursor.getString(2);
+        contact.photoLastModified = cursor.getString(3);
+        contact.photoSize = cursor.getString(4);
+        contact.picture = cursor.getString(5);
+        contacts.add(contact);
+      }
+
+      return contacts;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Stores the given contacts and removes the given source ids, in one transaction.
+   */
+  public void update(Collection<LocalContact> contacts, Collection<String> removedSourceIds) {
+    SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      for (LocalContact contact : contacts) put(db, contact);
+      for (String sourceId : removedSourceIds) db.delete(CONTACTS, SOURCE_ID + " = ?", new String[] { sourceId });
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Removes the contacts of raw contacts deleted outside of a sync, so the index still matches the
+   * provider afterwards.
+   */
+  public void removeRawContacts(List<String> rawContactIds) {
+    SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      for (int i = 0; i < rawContactIds.size(); i += MAX_IDS_PER_DELETE) {
+        List<String> chunk = rawContactIds.subList(i, Math.min(i + MAX_IDS_PER_DELETE, rawContactIds.size()));
+        StringBuilder placeholders = new StringBuilder();
+
+        for (int j = 0; j < chunk.size(); j++) {
+          if (j > 0) placeholders.append(',');
+          placeholders.append('?');
+        }
+
+        db.delete(CONTACTS, RAW_CONTACT_ID + " IN (" + placeholders + ")", chunk.toArray(new String[chunk.size()]));
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Replaces the whole index with the given contacts, read from the provider. The picture URLs of
+   * contacts that were in the index are kept.
+   */
+  public void replace(ContactTable contacts) {
+    SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      Map<String, String> pictures = getPictures(db);
+      db.delete(CONTACTS, null, null);
+
+      for (int row = 0; row < contacts.size(); row++) {
+        LocalContact contact = contacts.getContact(row);
+        contact.picture = pictures.get(contact.sourceId);
+        put(db, contact);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private void put(SQLiteDatabase db, LocalContact contact) {
+    ContentValues values = new ContentValues();
+    values.put(SOURCE_ID, contact.sourceId);
+    values.put(RAW_CONTACT_ID, Long.valueOf(contact.rawContactId));
+    values.put(FINGERPRINT, contact.fingerprint);
+    values.put(PHOTO_LAST_MODIFIED, contact.photoLastModified);
+    values.put(PHOTO_SIZE, contact.photoSize);
+    values.put(PICTURE, contact.picture);
+    db.replace(CONTACTS, null, values);
+  }
+
+  private Map<String, String> getPictures(SQLiteDatabase db) {
+    Cursor cursor = db.query(CONTACTS, new String[] { SOURCE_ID, PICTURE }, PICTURE + " IS NOT NULL", null, null, null, null);
+
+    try {
+      Map<String, String> pictures = new HashMap<>();
+      while (cursor.moveToNext()) pictures.put(cursor.getString(0), cursor.getString(1));
+      return pictures;
+    } finally {
+      cursor.close();
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package com.valtech.contactsync;
+
+import android.content.SyncResult;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timings and counters of one sync run. Phase times add up every time a phase is entered, and
+ * phases may overlap (batches are applied during the diff), so they do not sum to the duration.
+ *
+ * Counters are updated from the sync thread and the image download threads.
+ */
+public class SyncMetrics {
+  public final long startedAt;
+  public final String appVersion;
+  public String outcome;
+  public long durationMillis;
+  public final Map<String, Long> phaseMillis = new LinkedHashMap<>();
+
+  public long bytesDownloaded;
+  public long bytesDecoded;
+  public long providerCalls;
+  public long operationsApplied;
+  public long photosDownloaded;
+  public long photosNotModified;
+  public long photoCacheHits;
+
+  public long inserts;
+  public long updates;
+  public long deletes;
+  public long skipped;
+
+  public SyncMetrics(String appVersion) {
+    this.startedAt = System.currentTimeMillis();
+    this.appVersion = appVersion;
+  }
+
+  public synchronized void addTime(String phase, long millis) {
+    Long total = phaseMillis.get(phase);
+    phaseMillis.put(phase, total != null ? total + millis : millis);
+  }
+
+  public synchronized void addBytesDownloaded(long bytes, long decoded) {
+    bytesDownloaded += bytes;
+    bytesDecoded += decoded;
+  }
+
+  public synchronized void countProviderCalls(int calls) {
+    providerCalls += calls;
+  }
+
+  public synchronized void countOperationsApplied(int operations) {
+    operationsApplied += operations;
+  }
+
+  public synchronized void countPhotoDownloaded() {
+    photosDownloaded++;
+  }
+
+  public synchronized void countPhotoNotModified() {
+    photosNotModified++;
+  }
+
+  public synchronized void countPhotoCacheHit() {
+    photoCacheHits++;
+  }
+
+  public synchronized void finish(SyncResult syncResult, String outcome) {
+    this.outcome = outcome;
+    this.durationMillis = System.currentTimeMillis() - startedAt;
+    this.inserts = syncResult.stats.numInserts;
+    this.updates = syncResult.stats.numUpdates;
+    this.deletes = syncResult.stats.numDeletes;
+    this.skipped = syncResult.stats.numSkippedEntries;
+  }
+}
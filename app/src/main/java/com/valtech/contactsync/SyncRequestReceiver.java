@@ -0,0 +1,38 @@
+package com.valtech.contactsync;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+/**
+ * Receives change notifications pushed for the directory and requests a sync of only the contacts
+ * or countries named in them. Senders must hold the signature permission declared in the manifest.
+ */
+public class SyncRequestReceiver extends BroadcastReceiver {
+  private static final String TAG = SyncRequestReceiver.class.getSimpleName();
+
+  public static final String ACTION_CONTACTS_CHANGED = "com.valtech.contactsync.CONTACTS_CHANGED";
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    if (!ACTION_CONTACTS_CHANGED.equals(intent.getAction())) return;
+
+    Bundle extras = new Bundle();
+    String contacts = intent.getStringExtra(SyncAdapter.EXTRA_CONTACTS);
+    String countries = intent.getStringExtra(SyncAdapter.EXTRA_COUNTRIES);
+    if (contacts != null) extras.putString(SyncAdapter.EXTRA_CONTACTS, contacts);
+    if (countries != null) extras.putString(SyncAdapter.EXTRA_COUNTRIES, countries);
+
+    for (Account account : AccountManager.get(context).getAccountsByType(context.getString(R.string.account_type))) {
+      if (!ContentResolver.getSyncAutomatically(account, ContactsContract.AUTHORITY)) continue;
+      Log.i(TAG, "Contacts changed, requesting sync of " + (extras.isEmpty() ? "everything" : extras) + ".");
+      ContentResolver.requestSync(account, ContactsContract.AUTHORITY, extras);
+    }
+  }
+}
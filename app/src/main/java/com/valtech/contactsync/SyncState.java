@@ -0,0 +1,111 @@
+package com.valtech.contactsync;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.text.TextUtils;
+import com.valtech.contactsync.api.SyncMarker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sync progress kept in the user data of the account, so it survives restarts of the app and is
+ * removed together with the account.
+ */
+public class SyncState {
+  private static final String DIRECTORY_ETAG = "directory_etag";
+  private static final String DIRECTORY_LAST_MODIFIED = "directory_last_modified";
+  private static final String DIRECTORY_CURSOR = "directory_cursor";
+  private static final String DIRECTORY_COUNTRIES = "directory_countries";
+  private static final String DIRECTORY_SYNCED_AT = "directory_synced_at";
+  private static final String CHECKPOINT_ETAG = "checkpoint_etag";
+  private static final String CHECKPOINT_LAST_MODIFIED = "checkpoint_last_modified";
+  private static final String CHECKPOINT_CURSOR = "checkpoint_cursor";
+  private static final String CHECKPOINT_COUNTRIES = "checkpoint_countries";
+  private static final String CHECKPOINT_POSITIONS = "checkpoint_positions";
+
+  // Only a full sync removes contacts that are missing from the directory. A delta relies on the
+  // server reporting every removal since the cursor, so reconcile with a full sync once in a while
+  private static final long MAX_MARKER_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+  private final AccountManager accountManager;
+  private final Account account;
+
+  public SyncState(Context context, Account account) {
+    this.accountManager = AccountManager.get(context);
+    this.account = account;
+  }
+
+  /**
+   * Returns the marker of the last complete sync, or an empty marker if the synced countries have
+   * changed since then or it is time for a full sync.
+   */
+  public SyncMarker getMarker(String countries) {
+    SyncMarker marker = new SyncMarker();
+    if (!countries.equals(accountManager.getUserData(account, DIRECTORY_COUNTRIES))) return marker;
+
+    String syncedAt = accountManager.getUserData(account, DIRECTORY_SYNCED_AT);
+    if (syncedAt == null || System.currentTimeMillis() - Long.parseLong(syncedAt) > MAX_MARKER_AGE_MILLIS) return marker;
+
+    marker.etag = accountManager.getUserData(account, DIRECTORY_ETAG);
+    marker.lastModified = accountManager.getUserData(account, DIRECTORY_LAST_MODIFIED);
+    marker.cursor = accountManager.getUserData(account, DIRECTORY_CURSOR);
+    return marker;
+  }
+
+  /**
+   * Stores the marker of a completed sync. A delta sync keeps the time of the last full sync.
+   */
+  public void setMarker(SyncMarker marker, String countries, boolean fullSync) {
+    accountManager.setUserData(account, DIRECTORY_ETAG, marker.etag);
+    accountManager.setUserData(account, DIRECTORY_LAST_MODIFIED, marker.lastModified);
+    accountManager.setUserData(account, DIRECTORY_CURSOR, marker.cursor);
+    accountManager.setUserData(account, DIRECTORY_COUNTRIES, countries);
+    if (fullSync) accountManager.setUserData(account, DIRECTORY_SYNCED_AT, String.valueOf(System.currentTimeMillis()));
+  }
+
+  /**
+   * Returns the position in the remote contacts of each country up to which an interrupted sync
+   * got, or no positions if the directory response or the synced countries are not the same as then.
+   */
+  public Map<String, Integer> getCheckpoints(SyncMarker marker, String countries) {
+    Map<String, Integer> positions = new HashMap<>();
+
+    // without a validator there is no telling whether the list is the same
+    if (marker.etag == null && marker.lastModified == null) return positions;
+
+    String value = accountManager.getUserData(account, CHECKPOINT_POSITIONS);
+    if (value == null) return positions;
+
+    if (!TextUtils.equals(marker.etag, accountManager.getUserData(account, CHECKPOINT_ETAG))) return positions;
+    if (!TextUtils.equals(marker.lastModified, accountManager.getUserData(account, CHECKPOINT_LAST_MODIFIED))) return positions;
+    if (!TextUtils.equals(marker.cursor, accountManager.getUserData(account, CHECKPOINT_CURSOR))) return positions;
+    if (!countries.equals(accountManager.getUserData(account, CHECKPOINT_COUNTRIES))) return positions;
+
+    // stored as "dk=120,se=40"
+    for (String position : TextUtils.split(value, ",")) {
+      String[] parts = position.split("=", 2);
+      positions.put(parts[0], Integer.parseInt(parts[1]));
+    }
+
+    return positions;
+  }
+
+  public void setCheckpoints(SyncMarker marker, String countries, Map<String, Integer> positions) {
+    List<String> values = new ArrayList<>();
+    for (Map.Entry<String, Integer> position : positions.entrySet()) values.add(position.getKey() + "=" + position.getValue());
+
+    accountManager.setUserData(account, CHECKPOINT_ETAG, marker.etag);
+    accountManager.setUserData(account, CHECKPOINT_LAST_MODIFIED, marker.lastModified);
+    accountManager.setUserData(account, CHECKPOINT_CURSOR, marker.cursor);
+    accountManager.setUserData(account, CHECKPOINT_COUNTRIES, countries);
+    accountManager.setUserData(account, CHECKPOINT_POSITIONS, TextUtils.join(",", values));
+  }
+
+  public void clearCheckpoints() {
+    accountManager.setUserData(account, CHECKPOINT_POSITIONS, null);
+  }
+}
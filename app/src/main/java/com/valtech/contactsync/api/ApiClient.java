@@ -4,30 +4,66 @@ import android.content.Context;
 import android.net.Uri;
 import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 import com.valtech.contactsync.R;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreProtocolPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.reflect.Type;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ApiClient {
   private static final Gson GSON = new Gson();
 
+  // All requests share one pool of connections, so images and IDP calls during a sync reuse a
+  // handful of kept-alive connections instead of doing a new TCP and TLS handshake every time.
+  private static final int MAX_CONNECTIONS = 8;
+  private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+  private static final long DEFAULT_KEEP_ALIVE_MILLIS = 30 * 1000;
+  private static final long MAX_IDLE_SECONDS = 30;
+  private static final long CONNECTION_WAIT_MILLIS = 30 * 1000;
+
+  // Shared by all clients of the process, so a sync also counts the token refresh of the authenticator
+  private static final AtomicLong bytesReceived = new AtomicLong();
+  private static final AtomicLong bytesDecoded = new AtomicLong();
+
   private final String authorizeUrl;
   private final String tokenUrl;
   private final String userInfoUrl;
@@ -36,6 +72,7 @@ public class ApiClient {
   private final String clientSecret;
   private final String initialScope;
   private final String followUpScope;
+  private final DefaultHttpClient httpClient;
 
   public ApiClient(Context context) {
     this.authorizeUrl = context.getString(R.string.idp_authorize_url);
@@ -46,6 +83,7 @@ public class ApiClient {
     this.clientSecret = context.getString(R.string.idp_client_secret);
     this.initialScope = context.getString(R.string.idp_initial_scope);
     this.followUpScope = context.getString(R.string.idp_follow_up_scope);
+    this.httpClient = createHttpClient();
   }
 
   public Uri getAuthorizeUrl() {
@@ -59,21 +97,43 @@ public class ApiClient {
     return tokenResponse;
   }
 
-  public String getAccessToken(String refreshToken) {
-    TokenResponse tokenResponse = tokenRequest(
+  public TokenResponse getAccessToken(String refreshToken) {
+    return tokenRequest(
       new BasicNameValuePair("grant_type", "refresh_token"),
       new BasicNameValuePair("refresh_token", refreshToken),
       new BasicNameValuePair("scope", followUpScope));
-    return tokenResponse.accessToken;
   }
 
-  public BinaryResponse downloadGravatarImage(String url, int maxSize, String lastModified) throws IOException {
+  public BinaryResponse downloadGravatarImage(String url, int maxSize, String lastModified, String etag) throws IOException {
     String gravatarUrl = url + "?s=" + maxSize + "&d=404";
-    return download(gravatarUrl, lastModified);
+    return download(gravatarUrl, lastModified, etag);
+  }
+
+  /**
+   * Returns the number of response body bytes read from the network by all clients of the process,
+   * compressed if the server compressed them.
+   */
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  /**
+   * Returns the number of response body bytes after decompression.
+   */
+  public long getBytesDecoded() {
+    return bytesDecoded.get();
+  }
+
+  /**
+   * Closes pooled connections that have been idle for too long or that the server has closed.
+   */
+  public void evictIdleConnections() {
+    ClientConnectionManager connectionManager = httpClient.getConnectionManager();
+    connectionManager.closeExpiredConnections();
+    connectionManager.closeIdleConnections(MAX_IDLE_SECONDS, TimeUnit.SECONDS);
   }
 
   private TokenResponse tokenRequest(NameValuePair... fields) {
-    HttpClient httpClient = new DefaultHttpClient();
     HttpPost httpPost = new HttpPost(tokenUrl);
 
     try {
@@ -84,7 +144,7 @@ public class ApiClient {
 
       httpPost.setEntity(new UrlEncodedFormEntity(nameValuePairs));
 
-      HttpResponse response = httpClient.execute(httpPost);
+      HttpResponse response = execute(httpPost);
 
       int statusCode = response.getStatusLine().getStatusCode();
       switch (statusCode) {
@@ -100,18 +160,25 @@ public class ApiClient {
           throw new RuntimeException("Unhandled response code " + statusCode + ".");
       }
     } catch (IOException e) {
+      httpPost.abort(); // releases the pooled connection
       throw new RuntimeException(e);
     }
   }
 
-  private String getLastModifiedHeader(HttpResponse response) {
-    Header header = response.getFirstHeader("Last-Modified");
-    if (header == null) return getCurrentHttpDate();
-    if (header.getValue() == null) return getCurrentHttpDate();
-    if (header.getValue().isEmpty()) return getCurrentHttpDate();
+  private String getHeader(HttpResponse response, String name) {
+    Header header = response.getFirstHeader(name);
+    if (header == null) return null;
+    if (header.getValue() == null) return null;
+    if (header.getValue().isEmpty()) return null;
     return header.getValue();
   }
 
+  private String getLastModifiedHeader(HttpResponse response) {
+    String lastModified = getHeader(response, "Last-Modified");
+    if (lastModified == null) return getCurrentHttpDate();
+    return lastModified;
+  }
+
   private String getCurrentHttpDate() {
     Calendar cal = Calendar.getInstance();
     DateFormat df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
@@ -123,31 +190,122 @@ public class ApiClient {
     return getProtectedResource(userInfoUrl, accessToken, UserInfoResponse.class);
   }
 
-  public List<UserInfoResponse> getUserInfoResources(String accessToken) {
-    return getProtectedResource(allUserInfosUrl, accessToken, new TypeToken<List<UserInfoResponse>>(){}.getType());
+  /**
+   * Streams all user infos to the handler while they are parsed, the full response is never kept
+   * in memory. The handler may block, the download then waits for it.
+   *
+   * The marker from the previous sync is sent as If-None-Match, If-Modified-Since and a since
+   * cursor. The server answers 304 if nothing changed, or only the changed users together with the
+   * header X-Sync-Delta: true. Users removed since the cursor are then included with deleted set.
+   * A server that ignores the cursor just returns all users.
+   *
+   * The directory is limited to the given comma separated country codes. A server that does not
+   * support the country parameter returns everyone, so the handler must still filter.
+   */
+  public DirectoryResponse getUserInfoResources(String accessToken, SyncMarker marker, String countries, UserInfoHandler handler) throws InterruptedException {
+    Uri.Builder url = Uri.parse(allUserInfosUrl).buildUpon();
+    if (!countries.isEmpty()) url.appendQueryParameter("country", countries);
+    if (marker.cursor != null) url.appendQueryParameter("since", marker.cursor);
+    HttpGet httpGet = new HttpGet(url.build().toString());
+    if (marker.etag != null) httpGet.setHeader("If-None-Match", marker.etag);
+    if (marker.lastModified != null) httpGet.setHeader("If-Modified-Since", marker.lastModified);
+
+    try {
+      HttpResponse response = executeProtected(httpGet, accessToken);
+      DirectoryResponse directoryResponse = new DirectoryResponse();
+
+      if (response.getStatusLine().getStatusCode() == 304) {
+        finish(response);
+        directoryResponse.notModified = true;
+        directoryResponse.marker = marker;
+        return directoryResponse;
+      }
+
+      directoryResponse.delta = marker.cursor != null && "true".equals(getHeader(response, "X-Sync-Delta"));
+      directoryResponse.marker = new SyncMarker();
+      directoryResponse.marker.etag = getHeader(response, "ETag");
+      directoryResponse.marker.lastModified = getHeader(response, "Last-Modified");
+      directoryResponse.marker.cursor = getHeader(response, "X-Sync-Cursor");
+      handler.start(directoryResponse);
+      directoryResponse.count = readUserInfos(httpGet, response.getEntity(), handler);
+      return directoryResponse;
+    } catch (IOException e) {
+      httpGet.abort(); // releases the pooled connection
+      throw new RuntimeException(e);
+    } catch (InterruptedException e) {
+      httpGet.abort();
+      throw e;
+    }
+  }
+
+  private int readUserInfos(HttpUriRequest request, HttpEntity entity, UserInfoHandler handler) throws IOException, InterruptedException {
+    String charset = EntityUtils.getContentCharSet(entity);
+    JsonReader reader = new JsonReader(new InputStreamReader(entity.getContent(), charset != null ? charset : "UTF-8"));
+    boolean complete = false;
+    int count = 0;
+
+    try {
+      reader.beginArray();
+
+      while (reader.hasNext()) {
+        UserInfoResponse userInfo = GSON.fromJson(reader, UserInfoResponse.class);
+        handler.handle(userInfo);
+        count++;
+      }
+
+      reader.endArray();
+      complete = true;
+      return count;
+    } finally {
+      if (complete) reader.close();
+      else abort(request, reader);
+    }
   }
 
-  private BinaryResponse download(String url, String lastModified) throws IOException {
-    HttpClient httpClient = new DefaultHttpClient();
+  /**
+   * Closing a response body reads the rest of it so the connection can be reused. When reading
+   * stops early, because the sync was canceled or failed, the connection is dropped instead so
+   * the rest of the directory is not downloaded.
+   */
+  private void abort(HttpUriRequest request, Closeable body) {
+    request.abort();
+
+    try {
+      body.close();
+    } catch (IOException e) {
+      // the connection is gone already, there is nothing left to release
+    }
+  }
+
+  private BinaryResponse download(String url, String lastModified, String etag) throws IOException {
     HttpGet request = new HttpGet(url);
     if (lastModified != null) request.setHeader("If-Modified-Since", lastModified);
+    if (etag != null) request.setHeader("If-None-Match", etag);
 
     // Gravatar requires a User-Agent otherwise we get 403, anything will do
-    httpClient.getParams().setParameter(CoreProtocolPNames.USER_AGENT, System.getProperty("http.agent"));
+    request.getParams().setParameter(CoreProtocolPNames.USER_AGENT, System.getProperty("http.agent"));
 
-    HttpResponse response = httpClient.execute(request);
+    HttpResponse response = execute(request);
     BinaryResponse binaryResponse = new BinaryResponse();
 
     int statusCode = response.getStatusLine().getStatusCode();
     switch (statusCode) {
       case 200:
-        binaryResponse.data = new ByteArrayOutputStream();
         binaryResponse.lastModified = getLastModifiedHeader(response);
-        response.getEntity().writeTo(binaryResponse.data);
+        binaryResponse.etag = getHeader(response, "ETag");
+
+        try {
+          binaryResponse.data = readBytes(response.getEntity());
+        } catch (IOException e) {
+          request.abort(); // releases the pooled connection
+          throw e;
+        }
+
         return binaryResponse;
       case 304:
         finish(response);
         binaryResponse.lastModified = lastModified;
+        binaryResponse.etag = etag;
         return binaryResponse;
       case 404:
         finish(response);
@@ -158,32 +316,63 @@ public class ApiClient {
     }
   }
 
+  /**
+   * Reads the entity into an array sized from its Content-Length, so the body is neither copied
+   * nor grown while reading. Falls back to a growing buffer when the length is unknown.
+   */
+  private byte[] readBytes(HttpEntity entity) throws IOException {
+    long length = entity.getContentLength();
+
+    if (length < 0 || length > Integer.MAX_VALUE) return EntityUtils.toByteArray(entity);
+
+    byte[] data = new byte[(int) length];
+    DataInputStream in = new DataInputStream(entity.getContent());
+
+    try {
+      in.readFully(data);
+      return data;
+    } finally {
+      in.close();
+    }
+  }
+
   private <T> T getProtectedResource(String url, String accessToken, Type type) {
-    HttpClient httpClient = new DefaultHttpClient();
     HttpGet httpGet = new HttpGet(url);
 
     try {
-      httpGet.setHeader("Authorization", "Bearer " + accessToken);
-      HttpResponse response = httpClient.execute(httpGet);
-
-      int statusCode = response.getStatusLine().getStatusCode();
-      switch (statusCode) {
-        case 200:
-          String json = EntityUtils.toString(response.getEntity());
-          return GSON.fromJson(json, type);
-        case 401:
-          Header wwwAuthenticateHeader = response.getFirstHeader("WWW-Authenticate");
-          finish(response);
-          throw OAuthException.build(wwwAuthenticateHeader);
-        default:
-          finish(response);
-          throw new RuntimeException("Unhandled response code " + statusCode + ".");
-      }
+      HttpResponse response = executeProtected(httpGet, accessToken);
+      String json = EntityUtils.toString(response.getEntity());
+      return GSON.fromJson(json, type);
     } catch (IOException e) {
+      httpGet.abort(); // releases the pooled connection
       throw new RuntimeException(e);
     }
   }
 
+  private HttpResponse executeProtected(HttpGet httpGet, String accessToken) throws IOException {
+    httpGet.setHeader("Authorization", "Bearer " + accessToken);
+    HttpResponse response = execute(httpGet);
+
+    int statusCode = response.getStatusLine().getStatusCode();
+    switch (statusCode) {
+      case 200:
+      case 304: // only when the request is conditional
+        return response;
+      case 401:
+        Header wwwAuthenticateHeader = response.getFirstHeader("WWW-Authenticate");
+        finish(response);
+        throw OAuthException.build(wwwAuthenticateHeader);
+      default:
+        finish(response);
+        throw new RuntimeException("Unhandled response code " + statusCode + ".");
+    }
+  }
+
+  private HttpResponse execute(HttpUriRequest request) throws IOException {
+    evictIdleConnections();
+    return httpClient.execute(request);
+  }
+
   private void finish(HttpResponse response) throws IOException {
     if (response.getEntity() == null) return;
     // consumeContent() will be renamed to finish() in next major, as it actually releases all resources
@@ -192,11 +381,76 @@ public class ApiClient {
     response.getEntity().consumeContent();
   }
 
+  private DefaultHttpClient createHttpClient() {
+    HttpParams params = new BasicHttpParams();
+    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+    ConnManagerParams.setTimeout(params, CONNECTION_WAIT_MILLIS);
+
+    SchemeRegistry schemeRegistry = new SchemeRegistry();
+    schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+    DefaultHttpClient httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemeRegistry), params);
+    httpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+      private final ConnectionKeepAliveStrategy serverStrategy = new DefaultConnectionKeepAliveStrategy();
+
+      @Override
+      public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+        // use the Keep-Alive timeout from the server if there is one, otherwise keep it for a while
+        long duration = serverStrategy.getKeepAliveDuration(response, context);
+        return duration > 0 ? duration : DEFAULT_KEEP_ALIVE_MILLIS;
+      }
+    });
+
+    // The reuse strategy runs after the response interceptors, judge the connection by the body as
+    // it was sent, the decoded one has no length
+    httpClient.setReuseStrategy(new DefaultConnectionReuseStrategy() {
+      @Override
+      public boolean keepAlive(HttpResponse response, HttpContext context) {
+        HttpEntity entity = response.getEntity();
+        if (!(entity instanceof DecodingEntity)) return super.keepAlive(response, context);
+
+        response.setEntity(((DecodingEntity) entity).getReceivedEntity());
+
+        try {
+          return super.keepAlive(response, context);
+        } finally {
+          response.setEntity(entity);
+        }
+      }
+    });
+
+    // The directory is large and repetitive JSON, ask for it compressed
+    httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+      @Override
+      public void process(HttpRequest request, HttpContext context) {
+        if (!request.containsHeader("Accept-Encoding")) request.addHeader("Accept-Encoding", "gzip, deflate");
+      }
+    });
+
+    // Decompress while the body is read, so the JSON parser streams from the network as before
+    httpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+      @Override
+      public void process(HttpResponse response, HttpContext context) {
+        HttpEntity entity = response.getEntity();
+        if (entity != null) response.setEntity(new DecodingEntity(entity, bytesReceived, bytesDecoded));
+      }
+    });
+
+    return httpClient;
+  }
+
   public static class TokenResponse {
     @SerializedName("access_token")
     public String accessToken;
 
     @SerializedName("refresh_token")
     public String refreshToken;
+
+    // Lifetime of the access token in seconds, 0 if the server did not say
+    @SerializedName("expires_in")
+    public long expiresIn;
   }
 }
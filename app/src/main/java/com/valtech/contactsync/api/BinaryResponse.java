@@ -1,9 +1,7 @@
 package com.valtech.contactsync.api;
 
-
-import java.io.ByteArrayOutputStream;
-
 public class BinaryResponse {
-  public ByteArrayOutputStream data;
+  public byte[] data;
   public String lastModified;
+  public String etag;
 }
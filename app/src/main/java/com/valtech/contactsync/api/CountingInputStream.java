@@ -0,0 +1,39 @@
+package com.valtech.contactsync.api;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adds the number of bytes read from the wrapped stream to a counter.
+ */
+class CountingInputStream extends FilterInputStream {
+  private final AtomicLong counter;
+
+  CountingInputStream(InputStream in, AtomicLong counter) {
+    super(in);
+    this.counter = counter;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = super.read();
+    if (b >= 0) counter.incrementAndGet();
+    return b;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int count) throws IOException {
+    int read = super.read(buffer, offset, count);
+    if (read > 0) counter.addAndGet(read);
+    return read;
+  }
+
+  @Override
+  public long skip(long count) throws IOException {
+    long skipped = super.skip(count);
+    counter.addAndGet(skipped);
+    return skipped;
+  }
+}
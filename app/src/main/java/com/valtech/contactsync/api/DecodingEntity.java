@@ -0,0 +1,72 @@
+package com.valtech.contactsync.api;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decompresses a gzip or deflate encoded entity while it is read, and counts the bytes before and
+ * after decompression. Entities without a content encoding are only counted.
+ */
+class DecodingEntity extends HttpEntityWrapper {
+  private final String encoding;
+  private final AtomicLong bytesTransferred;
+  private final AtomicLong bytesDecoded;
+
+  DecodingEntity(HttpEntity entity, AtomicLong bytesTransferred, AtomicLong bytesDecoded) {
+    super(entity);
+    Header contentEncoding = entity.getContentEncoding();
+    this.encoding = contentEncoding != null ? contentEncoding.getValue().trim().toLowerCase() : null;
+    this.bytesTransferred = bytesTransferred;
+    this.bytesDecoded = bytesDecoded;
+  }
+
+  /**
+   * Returns the entity as it was received, still encoded.
+   */
+  HttpEntity getReceivedEntity() {
+    return wrappedEntity;
+  }
+
+  @Override
+  public InputStream getContent() throws IOException {
+    InputStream in = new CountingInputStream(wrappedEntity.getContent(), bytesTransferred);
+    if ("gzip".equals(encoding)) in = new GZIPInputStream(in);
+    else if ("deflate".equals(encoding)) in = new InflaterInputStream(in);
+    return new CountingInputStream(in, bytesDecoded);
+  }
+
+  @Override
+  public long getContentLength() {
+    return isEncoded() ? -1 : wrappedEntity.getContentLength();
+  }
+
+  @Override
+  public Header getContentEncoding() {
+    return isEncoded() ? null : wrappedEntity.getContentEncoding();
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    InputStream in = getContent();
+
+    try {
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+    } finally {
+      in.close();
+    }
+  }
+
+  private boolean isEncoded() {
+    return "gzip".equals(encoding) || "deflate".equals(encoding);
+  }
+}
@@ -0,0 +1,12 @@
+package com.valtech.contactsync.api;
+
+public class DirectoryResponse {
+  // The directory has not changed since the marker that was sent, no users were read
+  public boolean notModified;
+
+  // Only users changed since the marker were read, users not in the response are unchanged
+  public boolean delta;
+
+  public int count;
+  public SyncMarker marker;
+}
@@ -0,0 +1,12 @@
+package com.valtech.contactsync.api;
+
+import org.apache.http.Header;
+
+/**
+ * The access token was rejected by the resource server, usually because it has expired.
+ */
+public class InvalidTokenException extends OAuthException {
+  public InvalidTokenException(Header wwwAuthenticateHeader) {
+    super(wwwAuthenticateHeader);
+  }
+}
@@ -11,8 +11,8 @@ public class OAuthException extends RuntimeException {
     super("OAuth error occurred on token request ('" + response.error + "', '" + response.error_description + "').");
   }
 
-  private OAuthException(Header wwwAuthenticateHeader) {
-    super("OAuth error occurred when accessing protected resource (" + wwwAuthenticateHeader.getValue() + ")");
+  protected OAuthException(Header wwwAuthenticateHeader) {
+    super("OAuth error occurred when accessing protected resource (" + (wwwAuthenticateHeader != null ? wwwAuthenticateHeader.getValue() : "no WWW-Authenticate header") + ")");
   }
 
   public static OAuthException build(TokenErrorResponse response) {
@@ -21,7 +21,11 @@ public class OAuthException extends RuntimeException {
   }
 
   public static OAuthException build(Header wwwAuthenticateHeader) {
-    if (wwwAuthenticateHeader == null) return new OAuthException("No WWW-Authenticate header present.");
+    // a 401 without error code is treated as an expired token as well
+    if (wwwAuthenticateHeader == null || wwwAuthenticateHeader.getValue().contains("invalid_token") || !wwwAuthenticateHeader.getValue().contains("error=")) {
+      return new InvalidTokenException(wwwAuthenticateHeader);
+    }
+
     return new OAuthException(wwwAuthenticateHeader);
   }
 }
\ No newline at end of file
@@ -0,0 +1,11 @@
+package com.valtech.contactsync.api;
+
+/**
+ * What the client knows about the last directory it synced, sent back to the resource server so
+ * it can answer with 304 Not Modified or with only the users changed since then.
+ */
+public class SyncMarker {
+  public String etag;
+  public String lastModified;
+  public String cursor;
+}
@@ -0,0 +1,11 @@
+package com.valtech.contactsync.api;
+
+public interface UserInfoHandler {
+  /**
+   * Called once the response headers are read, before the first user info. Not called when the
+   * directory has not been modified.
+   */
+  void start(DirectoryResponse response);
+
+  void handle(UserInfoResponse userInfo) throws InterruptedException;
+}
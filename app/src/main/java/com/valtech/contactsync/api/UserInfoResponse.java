@@ -15,4 +15,7 @@ public class UserInfoResponse {
 
   @SerializedName("fixed_phone_number")
   public String fixedPhoneNumber;
+
+  // Only set in delta responses, for users removed since the cursor
+  public boolean deleted;
 }
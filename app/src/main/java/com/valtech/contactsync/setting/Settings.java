@@ -3,15 +3,80 @@ package com.valtech.contactsync.setting;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
+import com.valtech.contactsync.PhotoQuality;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class Settings {
+  private static final String SYNC_PREFIX = "sync_";
+  private static final String PHOTO_QUALITY = "photo_quality";
+
+  private static volatile Set<String> enabledCountries;
+
+  // SharedPreferences only keeps a weak reference to its listeners
+  private static SharedPreferences.OnSharedPreferenceChangeListener enabledCountriesListener;
+
   public static boolean isSyncEnabled(Context context, String countryCode) {
     SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-    return prefs.getBoolean("sync_" + countryCode, false);
+    return prefs.getBoolean(SYNC_PREFIX + countryCode, false);
   }
 
   public static void setSyncEnabled(Context context, String countryCode, boolean enabled) {
     SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-    prefs.edit().putBoolean("sync_" + countryCode, enabled).commit();
+    prefs.edit().putBoolean(SYNC_PREFIX + countryCode, enabled).commit();
+  }
+
+  public static String getPhotoQuality(Context context) {
+    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+    return prefs.getString(PHOTO_QUALITY, PhotoQuality.AUTO);
+  }
+
+  /**
+   * Returns the country code of a sync setting key, or null if the key is not a sync setting.
+   */
+  public static String getCountryCode(String key) {
+    return key.startsWith(SYNC_PREFIX) ? key.substring(SYNC_PREFIX.length()) : null;
+  }
+
+  /**
+   * Returns an unmodifiable snapshot of the enabled country codes, sorted. The snapshot is replaced
+   * when the settings change, so callers can keep it for the length of a sync.
+   */
+  public static Set<String> getEnabledCountries(Context context) {
+    Set<String> countryCodes = enabledCountries;
+    if (countryCodes != null) return countryCodes;
+
+    synchronized (Settings.class) {
+      if (enabledCountries == null) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        enabledCountriesListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+          @Override
+          public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            if (key.startsWith(SYNC_PREFIX)) enabledCountries = readEnabledCountries(prefs);
+          }
+        };
+
+        prefs.registerOnSharedPreferenceChangeListener(enabledCountriesListener);
+        enabledCountries = readEnabledCountries(prefs);
+      }
+
+      return enabledCountries;
+    }
+  }
+
+  private static Set<String> readEnabledCountries(SharedPreferences prefs) {
+    Set<String> countryCodes = new TreeSet<>();
+
+    for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+      if (entry.getKey().startsWith(SYNC_PREFIX) && Boolean.TRUE.equals(entry.getValue())) {
+        countryCodes.add(entry.getKey().substring(SYNC_PREFIX.length()));
+      }
+    }
+
+    return Collections.unmodifiableSet(countryCodes);
   }
 }
@@ -1,13 +1,84 @@
 package com.valtech.contactsync.setting;
 
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.preference.Preference;
 import android.preference.PreferenceFragment;
+import com.valtech.contactsync.GroupRepository;
 import com.valtech.contactsync.R;
+import com.valtech.contactsync.SyncHistory;
+import com.valtech.contactsync.SyncIndex;
+
+import java.util.List;
+
+public class SettingsFragment extends PreferenceFragment implements SharedPreferences.OnSharedPreferenceChangeListener {
+  private static final String EXPORT_SYNC_HISTORY = "export_sync_history";
 
-public class SettingsFragment extends PreferenceFragment {
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     addPreferencesFromResource(R.xml.preferences);
+
+    findPreference(EXPORT_SYNC_HISTORY).setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+      @Override
+      public boolean onPreferenceClick(Preference preference) {
+        exportSyncHistory();
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Shares the metrics of the kept sync runs, so runs can be compared across app versions on
+   * release builds as well.
+   */
+  private void exportSyncHistory() {
+    Intent intent = new Intent(Intent.ACTION_SEND);
+    intent.setType("application/json");
+    intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.export_sync_history));
+    intent.putExtra(Intent.EXTRA_TEXT, new SyncHistory(getActivity()).toJson());
+    startActivity(Intent.createChooser(intent, getString(R.string.export_sync_history)));
+  }
+
+  @Override
+  public void onResume() {
+    super.onResume();
+    getPreferenceScreen().getSharedPreferences().registerOnSharedPreferenceChangeListener(this);
+  }
+
+  @Override
+  public void onPause() {
+    getPreferenceScreen().getSharedPreferences().unregisterOnSharedPreferenceChangeListener(this);
+    super.onPause();
+  }
+
+  @Override
+  public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+    String countryCode = Settings.getCountryCode(key);
+    if (countryCode == null || prefs.getBoolean(key, false)) return;
+
+    // Remove the contacts of an unselected country right away instead of at the next full sync
+    new DeleteCountryTask(getActivity().getApplicationContext()).execute(countryCode);
+  }
+
+  private static class DeleteCountryTask extends AsyncTask<String, Void, Void> {
+    private final Context context;
+
+    private DeleteCountryTask(Context context) {
+      this.context = context;
+    }
+
+    @Override
+    protected Void doInBackground(String... countryCodes) {
+      GroupRepository groupRepository = new GroupRepository(context.getContentResolver());
+      String groupTitle = String.format(context.getString(R.string.group_title_format), countryCodes[0].toUpperCase());
+      List<String> rawContactIds = groupRepository.deleteMembers(context.getString(R.string.account_type), groupTitle);
+      // keep the index in line, otherwise the next sync reads every raw contact to rebuild it
+      SyncIndex.get(context).removeRawContacts(rawContactIds);
+      return null;
+    }
   }
 }
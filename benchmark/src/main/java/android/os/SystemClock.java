@@ -0,0 +1,44 @@
+package android.os;
+
+/**
+ * Stands in for the framework class on the JVM, where the real clocks are native. Uptime and
+ * elapsed realtime are both the monotonic clock of the JVM.
+ */
+public final class SystemClock {
+  private SystemClock() {
+  }
+
+  public static void sleep(long ms) {
+    long end = uptimeMillis() + ms;
+    boolean interrupted = false;
+
+    while (true) {
+      long remaining = end - uptimeMillis();
+      if (remaining <= 0) break;
+
+      try {
+        Thread.sleep(remaining);
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  public static long uptimeMillis() {
+    return System.nanoTime() / 1000000;
+  }
+
+  public static long elapsedRealtime() {
+    return System.nanoTime() / 1000000;
+  }
+
+  public static long elapsedRealtimeNanos() {
+    return System.nanoTime();
+  }
+
+  public static long currentThreadTimeMillis() {
+    return System.nanoTime() / 1000000;
+  }
+}
@@ -0,0 +1,154 @@
+package com.valtech.contactsync;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SyncResult;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import com.valtech.contactsync.api.ApiClient;
+import com.valtech.contactsync.api.DirectoryResponse;
+import com.valtech.contactsync.api.SyncMarker;
+import com.valtech.contactsync.api.UserInfoHandler;
+import com.valtech.contactsync.api.UserInfoResponse;
+import com.valtech.contactsync.benchmark.FakeContactsProvider;
+import com.valtech.contactsync.benchmark.FakeContext;
+import com.valtech.contactsync.benchmark.IdpStandIn;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * One phone running the sync on the JVM, with its own contacts provider and sync index, syncing
+ * from an IDP stand-in. A sync runs like a complete sync of SyncAdapter, without AccountManager:
+ * the access token is that of the stand-in, and the directory marker and the enabled countries are
+ * kept here.
+ */
+public class Device {
+  private final FakeContactsProvider provider = new FakeContactsProvider();
+  private final MemorySyncIndex syncIndex = new MemorySyncIndex();
+  private final Context context;
+  private final Account account;
+  private final ApiClient apiClient;
+  private final LocalContactRepository repository;
+  private final Set<String> enabledCountries = new TreeSet<>();
+  private SyncMarker marker = new SyncMarker();
+  private String markerCountries;
+
+  public Device(IdpStandIn idp, File cacheDir) {
+    this.context = FakeContext.create(provider, cacheDir, idp.getIdpStrings());
+    this.account = new Account("user0@valtech.se", context.getString(R.string.account_type));
+    this.apiClient = new ApiClient(context);
+    this.repository = new LocalContactRepository(context, apiClient, syncIndex);
+  }
+
+  public FakeContactsProvider getProvider() {
+    return provider;
+  }
+
+  public MemorySyncIndex getSyncIndex() {
+    return syncIndex;
+  }
+
+  public ApiClient getApiClient() {
+    return apiClient;
+  }
+
+  public Context getContext() {
+    return context;
+  }
+
+  public Account getAccount() {
+    return account;
+  }
+
+  public void enableCountry(String countryCode) {
+    enabledCountries.add(countryCode);
+  }
+
+  /**
+   * Unselects the country like the settings do, deleting its contacts right away.
+   */
+  public void disableCountry(String countryCode) {
+    enabledCountries.remove(countryCode);
+
+    GroupRepository groupRepository = new GroupRepository(context.getContentResolver());
+    String groupTitle = String.format(context.getString(R.string.group_title_format), countryCode.toUpperCase());
+    List<String> rawContactIds = groupRepository.deleteMembers(account.type, groupTitle);
+    syncIndex.removeRawContacts(rawContactIds);
+  }
+
+  /**
+   * Syncs the enabled countries. Only what changed since the last sync is fetched, unless the
+   * enabled countries have changed since then.
+   */
+  public SyncResult sync(SyncMetrics metrics) throws InterruptedException {
+    return sync(metrics, true);
+  }
+
+  /**
+   * Syncs like {@link #sync(SyncMetrics)}, or without streaming, the contacts are then only synced
+   * once the whole directory has been downloaded and parsed.
+   */
+  public SyncResult sync(SyncMetrics metrics, final boolean streaming) throws InterruptedException {
+    final SyncResult syncResult = new SyncResult();
+    final SyncMetrics syncMetrics = metrics;
+    final Set<String> syncedCountries = new TreeSet<>(enabledCountries);
+    String countries = TextUtils.join(",", syncedCountries);
+    SyncMarker marker = countries.equals(markerCountries) ? this.marker : new SyncMarker();
+    long bytesReceived = apiClient.getBytesReceived();
+    long bytesDecoded = apiClient.getBytesDecoded();
+    String outcome = "error";
+
+    final LocalContactRepository.Session[] session = new LocalContactRepository.Session[1];
+    final List<UserInfoResponse> downloaded = new ArrayList<>();
+    UserInfoHandler handler = new UserInfoHandler() {
+      @Override
+      public void start(DirectoryResponse response) {
+        session[0] = repository.startSync(account, new HashMap<String, Integer>(), syncResult, syncMetrics, new LocalContactRepository.CheckpointHandler() {
+          @Override
+          public void onCheckpoint(String country, int position) {
+          }
+        });
+      }
+
+      @Override
+      public void handle(UserInfoResponse userInfo) throws InterruptedException {
+        if (!userInfo.deleted && !syncedCountries.contains(userInfo.countryCode)) return;
+        if (streaming) session[0].add(userInfo);
+        else downloaded.add(userInfo);
+      }
+    };
+
+    long start = SystemClock.elapsedRealtime();
+
+    try {
+      DirectoryResponse response = apiClient.getUserInfoResources(IdpStandIn.ACCESS_TOKEN, marker, countries, handler);
+      metrics.addTime("directory", SystemClock.elapsedRealtime() - start);
+
+      if (response.notModified) {
+        outcome = "not_modified";
+        return syncResult;
+      }
+
+      for (UserInfoResponse userInfo : downloaded) session[0].add(userInfo);
+      session[0].finish(!response.delta);
+      session[0].close();
+
+      if (syncResult.stats.numSkippedEntries == 0) {
+        this.marker = response.marker;
+        this.markerCountries = countries;
+      }
+
+      outcome = "complete";
+      return syncResult;
+    } finally {
+      if (session[0] != null) session[0].close();
+      metrics.addBytesDownloaded(apiClient.getBytesReceived() - bytesReceived, apiClient.getBytesDecoded() - bytesDecoded);
+      metrics.finish(syncResult, outcome);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.valtech.contactsync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The sync index kept in memory, SQLite is not available on the JVM. Keeps the same state as
+ * {@link SyncIndex} does in its table, so the sync behaves the same, but the time spent in SQLite
+ * on a device is not part of what is measured.
+ */
+public class MemorySyncIndex extends SyncIndex {
+  private final Map<String, LocalContact> contacts = new LinkedHashMap<>();
+
+  public MemorySyncIndex() {
+    super(null);
+  }
+
+  @Override
+  public synchronized boolean matches(long[] rawContactIds) {
+    long[] sorted = rawContactIds.clone();
+    Arrays.sort(sorted);
+
+    long[] indexed = new long[contacts.size()];
+    int i = 0;
+    for (LocalContact contact : contacts.values()) indexed[i++] = Long.parseLong(contact.rawContactId);
+    Arrays.sort(indexed);
+
+    return Arrays.equals(indexed, sorted);
+  }
+
+  @Override
+  public synchronized ContactTable getContacts() {
+    ContactTable table = new ContactTable(contacts.size());
+
+    for (LocalContact contact : contacts.values()) {
+      table.add(Long.parseLong(contact.rawContactId), contact.sourceId, contact.fingerprint, contact.photoLastModified, contact.photoSize, contact.picture != null);
+    }
+
+    return table;
+  }
+
+  @Override
+  public synchronized List<LocalContact> getContactsWithPicture() {
+    List<LocalContact> withPicture = new ArrayList<>();
+
+    for (LocalContact contact : contacts.values()) {
+      if (contact.picture != null) withPicture.add(copy(contact));
+    }
+
+    return withPicture;
+  }
+
+  @Override
+  public synchronized void update(Collection<LocalContact> updated, Collection<String> removedSourceIds) {
+    for (LocalContact contact : updated) contacts.put(contact.sourceId, copy(contact));
+    for (String sourceId : removedSourceIds) contacts.remove(sourceId);
+  }
+
+  @Override
+  public synchronized void removeRawContacts(List<String> rawContactIds) {
+    Set<String> removed = new HashSet<>(rawContactIds);
+
+    for (LocalContact contact : new ArrayList<>(contacts.values())) {
+      if (removed.contains(contact.rawContactId)) contacts.remove(contact.sourceId);
+    }
+  }
+
+  @Override
+  public synchronized void replace(ContactTable table) {
+    Map<String, LocalContact> previous = new LinkedHashMap<>(contacts);
+    contacts.clear();
+
+    for (int row = 0; row < table.size(); row++) {
+      LocalContact contact = table.getContact(row);
+      LocalContact indexed = previous.get(contact.sourceId);
+      contact.picture = indexed != null ? indexed.picture : null;
+      contacts.put(contact.sourceId, contact);
+    }
+  }
+
+  public synchronized int size() {
+    return contacts.size();
+  }
+
+  private LocalContact copy(LocalContact contact) {
+    LocalContact copy = new LocalContact();
+    copy.rawContactId = contact.rawContactId;
+    copy.sourceId = contact.sourceId;
+    copy.fingerprint = contact.fingerprint;
+    copy.photoLastModified = contact.photoLastModified;
+    copy.photoSize = contact.photoSize;
+    copy.picture = contact.picture;
+    return copy;
+  }
+}
@@ -0,0 +1,93 @@
+package com.valtech.contactsync.benchmark;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Measures the bytes allocated on the heap by all threads between start and stop, from the heap
+ * usage before and after every garbage collection in between. The sync allocates on threads that
+ * are gone when it is done, so per thread counters would miss most of it.
+ */
+public class AllocationMeter implements NotificationListener {
+  private final Set<String> heapPools = new HashSet<>();
+  private long collected;
+  private long notifications;
+  private long startUsed;
+  private long startCollections;
+  private boolean running;
+
+  public AllocationMeter() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) heapPools.add(pool.getName());
+    }
+
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+    }
+  }
+
+  public synchronized void start() {
+    collected = 0;
+    notifications = 0;
+    startCollections = getCollections();
+    startUsed = getUsed();
+    running = true;
+  }
+
+  /**
+   * Returns the bytes allocated since start, waiting briefly for the notifications of collections
+   * that have just finished.
+   */
+  public synchronized long stop() throws InterruptedException {
+    long used = getUsed();
+    long collections = getCollections() - startCollections;
+    long deadline = System.currentTimeMillis() + 1000;
+
+    while (notifications < collections && System.currentTimeMillis() < deadline) wait(10);
+
+    running = false;
+    return collected + used - startUsed;
+  }
+
+  @Override
+  public synchronized void handleNotification(Notification notification, Object handback) {
+    if (!running || !GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) return;
+
+    GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+    collected += getUsed(info.getGcInfo().getMemoryUsageBeforeGc()) - getUsed(info.getGcInfo().getMemoryUsageAfterGc());
+    notifications++;
+    notifyAll();
+  }
+
+  private long getUsed(Map<String, MemoryUsage> pools) {
+    long used = 0;
+
+    for (Map.Entry<String, MemoryUsage> pool : pools.entrySet()) {
+      if (heapPools.contains(pool.getKey())) used += pool.getValue().getUsed();
+    }
+
+    return used;
+  }
+
+  private long getUsed() {
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  private long getCollections() {
+    long collections = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) collections += collector.getCollectionCount();
+    return collections;
+  }
+}
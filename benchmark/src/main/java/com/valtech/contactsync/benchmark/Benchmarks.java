@@ -0,0 +1,52 @@
+package com.valtech.contactsync.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Settings shared by the benchmarks, from system properties: the directory sizes to run with
+ * (sizes), the runs to discard while the JIT warms up (warmup) and the runs to measure
+ * (iterations). Each benchmark reports the median of the measured runs.
+ */
+public class Benchmarks {
+  private Benchmarks() {
+  }
+
+  public static List<Integer> getSizes() {
+    return getSizes("100,1000,10000,50000");
+  }
+
+  public static List<Integer> getSizes(String defaultSizes) {
+    List<Integer> sizes = new ArrayList<>();
+    for (String size : System.getProperty("sizes", defaultSizes).split(",")) sizes.add(Integer.valueOf(size.trim()));
+    return sizes;
+  }
+
+  public static int getWarmup() {
+    return Integer.getInteger("warmup", 1);
+  }
+
+  public static int getIterations() {
+    return Integer.getInteger("iterations", 3);
+  }
+
+  public static long median(long[] values) {
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+
+  public static File createCacheDir() throws IOException {
+    File directory = File.createTempFile("contactsync", "");
+    if (!directory.delete() || !directory.mkdir()) throw new IOException("Could not create " + directory);
+    directory.deleteOnExit();
+    return directory;
+  }
+
+  public static String megabytes(long bytes) {
+    return String.format("%.1f", bytes / (1024.0 * 1024.0));
+  }
+}
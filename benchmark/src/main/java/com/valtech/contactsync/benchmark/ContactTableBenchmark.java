@@ -0,0 +1,136 @@
+package com.valtech.contactsync.benchmark;
+
+import com.valtech.contactsync.ContactTable;
+import com.valtech.contactsync.LocalContact;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the heap kept by the stored contacts during a sync, before and after the contact table:
+ *
+ * - map: a LocalContact per raw contact in a HashMap by source id, as the sync used to keep them
+ * - table: a {@link ContactTable}
+ *
+ * Both are filled with the same rows, with new strings for every row like a cursor returns them.
+ * Reports the retained heap after a full collection, the allocation and time to fill them and the
+ * time to look up every source id.
+ */
+public class ContactTableBenchmark {
+  private static final String[] LAST_MODIFIED = {
+    "Mon, 01 Sep 2014 08:00:00 GMT",
+    "Tue, 02 Sep 2014 09:30:00 GMT",
+    "Wed, 03 Sep 2014 10:45:00 GMT",
+    "Thu, 04 Sep 2014 12:15:00 GMT"
+  };
+
+  public static void main(String[] args) throws Exception {
+    AllocationMeter meter = new AllocationMeter();
+    int warmup = Benchmarks.getWarmup();
+    int iterations = Benchmarks.getIterations();
+
+    System.out.println(String.format("%8s  %-6s %12s %10s %10s %9s %10s", "size", "kind", "retained MB", "bytes/row", "alloc MB", "fill ms", "lookup ms"));
+
+    for (int size : Benchmarks.getSizes()) {
+      for (boolean table : new boolean[] { false, true }) {
+        long[] retained = new long[iterations];
+        long[] allocated = new long[iterations];
+        long[] fillMillis = new long[iterations];
+        long[] lookupMillis = new long[iterations];
+
+        for (int run = 0; run < warmup + iterations; run++) {
+          long before = getUsedAfterGc();
+
+          meter.start();
+          long start = System.nanoTime();
+          Object contacts = table ? fillTable(size) : fillMap(size);
+          long filled = System.nanoTime();
+          long bytes = meter.stop();
+
+          long used = getUsedAfterGc();
+
+          long lookupStart = System.nanoTime();
+          int found = table ? lookUp((ContactTable) contacts, size) : lookUp((Map<?, ?>) contacts, size);
+          long lookedUp = System.nanoTime();
+          if (found != size) throw new IllegalStateException("Found " + found + " of " + size + " contacts.");
+
+          if (run < warmup) continue;
+          retained[run - warmup] = used - before;
+          allocated[run - warmup] = bytes;
+          fillMillis[run - warmup] = (filled - start) / 1000000;
+          lookupMillis[run - warmup] = (lookedUp - lookupStart) / 1000000;
+        }
+
+        long medianRetained = Benchmarks.median(retained);
+        System.out.println(String.format("%8d  %-6s %12s %10d %10s %9d %10d", size, table ? "table" : "map",
+          Benchmarks.megabytes(medianRetained), medianRetained / size, Benchmarks.megabytes(Benchmarks.median(allocated)),
+          Benchmarks.median(fillMillis), Benchmarks.median(lookupMillis)));
+      }
+    }
+  }
+
+  private static Map<String, LocalContact> fillMap(int size) {
+    Map<String, LocalContact> contacts = new HashMap<>();
+    Random random = new Random(size);
+
+    for (int i = 0; i < size; i++) {
+      LocalContact contact = new LocalContact();
+      contact.rawContactId = String.valueOf(i + 1);
+      contact.sourceId = getSourceId(i);
+      contact.fingerprint = Long.toHexString(random.nextLong());
+      contact.photoLastModified = getLastModified(random);
+      contact.photoSize = contact.photoLastModified != null ? new String("720") : null;
+      contacts.put(contact.sourceId, contact);
+    }
+
+    return contacts;
+  }
+
+  private static ContactTable fillTable(int size) {
+    ContactTable contacts = new ContactTable(size);
+    Random random = new Random(size);
+
+    for (int i = 0; i < size; i++) {
+      String lastModified = getLastModified(random);
+      contacts.add(i + 1, getSourceId(i), Long.toHexString(random.nextLong()), lastModified, lastModified != null ? new String("720") : null, false);
+    }
+
+    return contacts;
+  }
+
+  private static int lookUp(Map<?, ?> contacts, int size) {
+    int found = 0;
+    for (int i = 0; i < size; i++) if (contacts.containsKey(getSourceId(i))) found++;
+    return found;
+  }
+
+  private static int lookUp(ContactTable contacts, int size) {
+    int found = 0;
+    for (int i = 0; i < size; i++) if (contacts.find(getSourceId(i)) >= 0) found++;
+    return found;
+  }
+
+  private static String getSourceId(int i) {
+    return "user" + i + "@valtech." + Directory.COUNTRIES[i % Directory.COUNTRIES.length];
+  }
+
+  /**
+   * Returns a new copy of one of a few Last-Modified values, or null for a contact without image.
+   */
+  private static String getLastModified(Random random) {
+    int index = random.nextInt(LAST_MODIFIED.length + 1);
+    return index < LAST_MODIFIED.length ? new String(LAST_MODIFIED[index]) : null;
+  }
+
+  private static long getUsedAfterGc() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,146 @@
+package com.valtech.contactsync.benchmark;
+
+import com.valtech.contactsync.api.UserInfoResponse;
+
+import java.util.*;
+
+/**
+ * The users of the stand-in IDP. Every change bumps the version of the directory and is recorded
+ * with it, so changes since an earlier version can be served as a delta.
+ */
+public class Directory {
+  public static final String[] COUNTRIES = { "se", "dk", "de", "fr", "gb", "us" };
+
+  private final Map<String, UserInfoResponse> users = new LinkedHashMap<>();
+  private final Map<String, Integer> changedAt = new HashMap<>();
+  private final Map<String, UserInfoResponse> removed = new LinkedHashMap<>();
+  private final Random random;
+  private int version = 1;
+
+  private Directory(long seed) {
+    this.random = new Random(seed);
+  }
+
+  /**
+   * Generates the same users for the same size every time, spread evenly over the countries. Most
+   * have a name, a mobile phone number and a picture, about half a fixed phone number.
+   */
+  public static Directory generate(int size) {
+    Directory directory = new Directory(size);
+
+    for (int i = 0; i < size; i++) {
+      UserInfoResponse user = new UserInfoResponse();
+      user.countryCode = COUNTRIES[i % COUNTRIES.length];
+      user.email = "user" + i + "@valtech." + user.countryCode;
+      user.name = "First" + i + " Last" + i;
+      user.phoneNumber = directory.random.nextInt(10) > 0 ? directory.newPhoneNumber() : null;
+      user.fixedPhoneNumber = directory.random.nextBoolean() ? directory.newPhoneNumber() : null;
+      user.picture = directory.random.nextInt(10) > 1 ? "https://www.gravatar.com/avatar/" + Integer.toHexString(user.email.hashCode()) : null;
+      directory.users.put(user.email, user);
+      directory.changedAt.put(user.email, directory.version);
+    }
+
+    return directory;
+  }
+
+  public synchronized int getVersion() {
+    return version;
+  }
+
+  public synchronized int size() {
+    return users.size();
+  }
+
+  public synchronized int size(Collection<String> countries) {
+    int count = 0;
+    for (UserInfoResponse user : users.values()) if (countries.contains(user.countryCode)) count++;
+    return count;
+  }
+
+  /**
+   * Changes the name or a phone number of the given fraction of the users, picked at random.
+   * Returns the number of users changed.
+   */
+  public synchronized int churn(double fraction) {
+    List<UserInfoResponse> all = new ArrayList<>(users.values());
+    Collections.shuffle(all, random);
+    int count = (int) Math.round(all.size() * fraction);
+    version++;
+
+    for (UserInfoResponse user : all.subList(0, count)) {
+      switch (random.nextInt(3)) {
+        case 0:
+          user.name = user.name + " Jr";
+          break;
+        case 1:
+          user.phoneNumber = newPhoneNumber();
+          break;
+        default:
+          user.fixedPhoneNumber = user.fixedPhoneNumber == null ? newPhoneNumber() : null;
+          break;
+      }
+
+      changedAt.put(user.email, version);
+    }
+
+    return count;
+  }
+
+  public synchronized void add(UserInfoResponse user) {
+    version++;
+    users.put(user.email, user);
+    removed.remove(user.email);
+    changedAt.put(user.email, version);
+  }
+
+  public synchronized void remove(String email) {
+    version++;
+    UserInfoResponse user = users.remove(email);
+    if (user == null) return;
+
+    UserInfoResponse deleted = new UserInfoResponse();
+    deleted.email = user.email;
+    deleted.countryCode = user.countryCode;
+    deleted.deleted = true;
+    removed.put(email, deleted);
+    changedAt.put(email, version);
+  }
+
+  /**
+   * Returns the users of the countries, all users if countries is null. With a since version of 0
+   * all of them are returned, otherwise only those changed after it, including removed ones.
+   */
+  public synchronized List<UserInfoResponse> getUsers(Collection<String> countries, int since) {
+    List<UserInfoResponse> result = new ArrayList<>();
+
+    for (UserInfoResponse user : users.values()) {
+      if (countries != null && !countries.contains(user.countryCode)) continue;
+      if (since == 0 || changedAt.get(user.email) > since) result.add(copy(user));
+    }
+
+    if (since == 0) return result;
+
+    for (UserInfoResponse user : removed.values()) {
+      if (countries != null && !countries.contains(user.countryCode)) continue;
+      if (changedAt.get(user.email) > since) result.add(copy(user));
+    }
+
+    return result;
+  }
+
+  private String newPhoneNumber() {
+    return String.format("+46 70 %03d %02d %02d", random.nextInt(1000), random.nextInt(100), random.nextInt(100));
+  }
+
+  private UserInfoResponse copy(UserInfoResponse user) {
+    UserInfoResponse copy = new UserInfoResponse();
+    copy.email = user.email;
+    copy.name = user.name;
+    copy.picture = user.picture;
+    copy.countryCode = user.countryCode;
+    copy.phoneNumber = user.phoneNumber;
+    copy.fixedPhoneNumber = user.fixedPhoneNumber;
+    copy.deleted = user.deleted;
+    return copy;
+  }
+}
@@ -0,0 +1,747 @@
+package com.valtech.contactsync.benchmark;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.IContentProvider;
+import android.content.OperationApplicationException;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.ICancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.provider.BaseColumns;
+import android.provider.ContactsContract;
+
+import java.io.FileNotFoundException;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static android.provider.ContactsContract.Data;
+import static android.provider.ContactsContract.Groups;
+import static android.provider.ContactsContract.RawContacts;
+import static android.provider.ContactsContract.RawContactsEntity;
+
+/**
+ * An in-memory contacts provider with the tables and selections the sync uses: raw contacts, data,
+ * the raw contact entities view and groups. Selections are terms joined by AND, each one of
+ * "column = ?", "column = literal", "column IN (?, ...)" or "column IS [NOT] NULL", anything else
+ * fails like an invalid selection does on a device.
+ *
+ * Like the real provider it keeps raw contacts deleted without CALLER_IS_SYNCADAPTER, marked as
+ * deleted, and marks raw contacts written without it as dirty. A batch is applied in one
+ * transaction, which is committed at yield points only when {@link #setCommitAtYieldPoints(boolean)}
+ * is set, as the real provider does when other writers are waiting. Every call is counted, they
+ * are what would cross the process boundary on a device.
+ */
+public class FakeContactsProvider implements IContentProvider {
+  private static final String RAW_CONTACTS = "raw_contacts";
+  private static final String DATA = "data";
+  private static final String ENTITIES = "raw_contact_entities";
+  private static final String GROUPS = "groups";
+  private static final String PHOTO_DIMENSIONS = "photo_dimensions";
+
+  private static final Pattern EQUALS = Pattern.compile("(\\w+)\\s*=\\s*(\\?|'[^']*'|-?\\d+)");
+  private static final Pattern IN = Pattern.compile("(\\w+)\\s+IN\\s*\\(([^)]*)\\)");
+  private static final Pattern IS_NULL = Pattern.compile("(\\w+)\\s+IS\\s+(NOT\\s+)?NULL");
+
+  private static final Field SELECTION = getField(ContentProviderOperation.class, "mSelection");
+
+  private final Map<Long, Map<String, Object>> rawContacts = new LinkedHashMap<>();
+  private final Map<Long, Map<String, Object>> data = new LinkedHashMap<>();
+  private final Map<Long, List<Map<String, Object>>> dataByRawContact = new HashMap<>();
+  private final Map<Long, Map<String, Object>> groups = new LinkedHashMap<>();
+  private final Map<String, List<Term>> selections = new HashMap<>();
+  private final Map<String, String> failures = new HashMap<>();
+  private long nextId = 1;
+  private boolean commitAtYieldPoints;
+
+  // undo log of the batch being applied, null outside of a batch
+  private List<Runnable> undo;
+
+  private int calls;
+  private int operations;
+  private long firstBatchNanos;
+
+  public synchronized void setCommitAtYieldPoints(boolean commitAtYieldPoints) {
+    this.commitAtYieldPoints = commitAtYieldPoints;
+  }
+
+  /**
+   * Makes every insert or update that sets the column to the value fail with an
+   * IllegalArgumentException, as a constraint of the real provider would.
+   */
+  public synchronized void failWrites(String column, String value) {
+    failures.put(column, value);
+  }
+
+  /**
+   * Returns the number of calls made to the provider, a batch counts as one call.
+   */
+  public synchronized int getCalls() {
+    return calls;
+  }
+
+  public synchronized int getOperations() {
+    return operations;
+  }
+
+  /**
+   * Returns the System.nanoTime() of the first batch applied since the counters were reset, or 0
+   * if there was none.
+   */
+  public synchronized long getFirstBatchNanos() {
+    return firstBatchNanos;
+  }
+
+  public synchronized void resetCounters() {
+    calls = 0;
+    operations = 0;
+    firstBatchNanos = 0;
+  }
+
+  public synchronized int getRawContactCount() {
+    return rawContacts.size();
+  }
+
+  /**
+   * Returns copies of the raw contacts with the source id, oldest first.
+   */
+  public synchronized List<Map<String, Object>> getRawContacts(String sourceId) {
+    List<Map<String, Object>> found = new ArrayList<>();
+
+    for (Map<String, Object> rawContact : rawContacts.values()) {
+      if (sourceId.equals(rawContact.get(RawContacts.SOURCE_ID))) found.add(new HashMap<>(rawContact));
+    }
+
+    return found;
+  }
+
+  /**
+   * Returns copies of the data rows of the raw contact with the mime type.
+   */
+  public synchronized List<Map<String, Object>> getData(long rawContactId, String mimeType) {
+    List<Map<String, Object>> found = new ArrayList<>();
+
+    for (Map<String, Object> row : getDataRows(rawContactId)) {
+      if (mimeType.equals(row.get(Data.MIMETYPE))) found.add(new HashMap<>(row));
+    }
+
+    return found;
+  }
+
+  @Override
+  public synchronized Cursor query(String callingPkg, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder, ICancellationSignal cancellationSignal) {
+    calls++;
+    if (projection == null) throw new IllegalArgumentException("A projection is required.");
+
+    Target target = getTarget(uri);
+    List<Map<String, Object>> rows;
+
+    if (PHOTO_DIMENSIONS.equals(target.table)) {
+      Map<String, Object> row = new HashMap<>();
+      row.put(ContactsContract.DisplayPhoto.DISPLAY_MAX_DIM, 720);
+      row.put(ContactsContract.DisplayPhoto.THUMBNAIL_MAX_DIM, 96);
+      rows = Collections.singletonList(row);
+    } else {
+      rows = select(target, selection, selectionArgs);
+    }
+
+    if (sortOrder != null) sort(rows, sortOrder);
+
+    MatrixCursor cursor = new MatrixCursor(projection, rows.size());
+
+    for (Map<String, Object> row : rows) {
+      Object[] values = new Object[projection.length];
+      for (int i = 0; i < projection.length; i++) values[i] = row.get(projection[i]);
+      cursor.addRow(values);
+    }
+
+    return cursor;
+  }
+
+  @Override
+  public synchronized Uri insert(String callingPkg, Uri uri, ContentValues values) {
+    calls++;
+    return insert(uri, values);
+  }
+
+  @Override
+  public synchronized int bulkInsert(String callingPkg, Uri uri, ContentValues[] values) {
+    calls++;
+    for (ContentValues row : values) insert(uri, row);
+    return values.length;
+  }
+
+  @Override
+  public synchronized int update(String callingPkg, Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    calls++;
+    return update(uri, values, selection, selectionArgs);
+  }
+
+  @Override
+  public synchronized int delete(String callingPkg, Uri uri, String selection, String[] selectionArgs) {
+    calls++;
+    return delete(uri, selection, selectionArgs);
+  }
+
+  @Override
+  public synchronized ContentProviderResult[] applyBatch(String callingPkg, ArrayList<ContentProviderOperation> ops) throws OperationApplicationException {
+    calls++;
+    operations += ops.size();
+    if (firstBatchNanos == 0) firstBatchNanos = System.nanoTime();
+
+    ContentProviderResult[] results = new ContentProviderResult[ops.size()];
+    undo = new ArrayList<>();
+
+    try {
+      for (int i = 0; i < ops.size(); i++) {
+        ContentProviderOperation op = ops.get(i);
+        // commit what has been applied so far, it is no longer rolled back
+        if (i > 0 && op.isYieldAllowed() && commitAtYieldPoints) undo.clear();
+
+        ContentValues values = op.resolveValueBackReferences(results, i);
+        String[] selectionArgs = op.resolveSelectionArgsBackReferences(results, i);
+        String selection = getSelection(op);
+
+        switch (op.getType()) {
+          case ContentProviderOperation.TYPE_INSERT:
+            results[i] = new ContentProviderResult(insert(op.getUri(), values));
+            break;
+          case ContentProviderOperation.TYPE_UPDATE:
+            results[i] = new ContentProviderResult(update(op.getUri(), values, selection, selectionArgs));
+            break;
+          case ContentProviderOperation.TYPE_DELETE:
+            results[i] = new ContentProviderResult(delete(op.getUri(), selection, selectionArgs));
+            break;
+          default:
+            throw new OperationApplicationException("Unsupported operation " + op + ".");
+        }
+      }
+
+      undo = null;
+      return results;
+    } catch (RuntimeException | OperationApplicationException e) {
+      for (int i = undo.size() - 1; i >= 0; i--) undo.get(i).run();
+      undo = null;
+      throw e;
+    }
+  }
+
+  @Override
+  public synchronized AssetFileDescriptor openAssetFile(String callingPkg, Uri uri, String mode, ICancellationSignal signal) throws FileNotFoundException {
+    calls++;
+    throw new FileNotFoundException("Display photos are not supported by the fake provider.");
+  }
+
+  @Override
+  public AssetFileDescriptor openTypedAssetFile(String callingPkg, Uri uri, String mimeType, Bundle opts, ICancellationSignal signal) throws FileNotFoundException {
+    return openAssetFile(callingPkg, uri, "r", signal);
+  }
+
+  @Override
+  public ParcelFileDescriptor openFile(String callingPkg, Uri uri, String mode, ICancellationSignal signal) throws FileNotFoundException {
+    throw new FileNotFoundException("Files are not supported by the fake provider.");
+  }
+
+  @Override
+  public String getType(Uri uri) {
+    return null;
+  }
+
+  @Override
+  public Bundle call(String callingPkg, String method, String arg, Bundle extras) {
+    throw new UnsupportedOperationException(method);
+  }
+
+  @Override
+  public ICancellationSignal createCancellationSignal() {
+    return null;
+  }
+
+  @Override
+  public Uri canonicalize(String callingPkg, Uri uri) {
+    return uri;
+  }
+
+  @Override
+  public Uri uncanonicalize(String callingPkg, Uri uri) {
+    return uri;
+  }
+
+  @Override
+  public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+    return null;
+  }
+
+  @Override
+  public IBinder asBinder() {
+    return null;
+  }
+
+  private Uri insert(Uri uri, ContentValues values) {
+    Target target = getTarget(uri);
+    checkWrite(values);
+    final Map<String, Object> row = toMap(values);
+    final long id = nextId++;
+    row.put(BaseColumns._ID, id);
+
+    if (RAW_CONTACTS.equals(target.table)) {
+      putDefault(row, RawContacts.DELETED, 0);
+      putDefault(row, RawContacts.STARRED, 0);
+      putDefault(row, RawContacts.TIMES_CONTACTED, 0);
+      row.put(RawContacts.DIRTY, isSyncAdapter(uri) ? 0 : 1);
+      rawContacts.put(id, row);
+      logUndo(new Runnable() {
+        @Override
+        public void run() {
+          rawContacts.remove(id);
+        }
+      });
+      return ContentUris.withAppendedId(RawContacts.CONTENT_URI, id);
+    } else if (DATA.equals(target.table)) {
+      Object rawContactId = row.get(Data.RAW_CONTACT_ID);
+      if (rawContactId == null) throw new IllegalArgumentException(Data.RAW_CONTACT_ID + " is required");
+      Map<String, Object> rawContact = rawContacts.get(toLong(rawContactId));
+      if (rawContact == null) throw new IllegalArgumentException("Raw contact " + rawContactId + " does not exist");
+
+      row.put(Data.RAW_CONTACT_ID, toLong(rawContactId));
+      addData(row);
+      markDirty(uri, rawContact);
+      logUndo(new Runnable() {
+        @Override
+        public void run() {
+          removeData(row);
+        }
+      });
+      return ContentUris.withAppendedId(Data.CONTENT_URI, id);
+    } else if (GROUPS.equals(target.table)) {
+      putDefault(row, Groups.DELETED, 0);
+      groups.put(id, row);
+      logUndo(new Runnable() {
+        @Override
+        public void run() {
+          groups.remove(id);
+        }
+      });
+      return ContentUris.withAppendedId(Groups.CONTENT_URI, id);
+    }
+
+    throw new IllegalArgumentException("Insert not supported for " + uri);
+  }
+
+  private int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    Target target = getTarget(uri);
+    if (ENTITIES.equals(target.table)) throw new IllegalArgumentException("Update not supported for " + uri);
+    checkWrite(values);
+
+    List<Map<String, Object>> rows = select(target, selection, selectionArgs);
+
+    for (final Map<String, Object> row : rows) {
+      final Map<String, Object> old = new HashMap<>(row);
+      row.putAll(toMap(values));
+      if (RAW_CONTACTS.equals(target.table)) markDirty(uri, row);
+      if (DATA.equals(target.table)) markDirty(uri, rawContacts.get(toLong(row.get(Data.RAW_CONTACT_ID))));
+
+      logUndo(new Runnable() {
+        @Override
+        public void run() {
+          row.clear();
+          row.putAll(old);
+        }
+      });
+    }
+
+    return rows.size();
+  }
+
+  private int delete(Uri uri, String selection, String[] selectionArgs) {
+    Target target = getTarget(uri);
+    if (ENTITIES.equals(target.table)) throw new IllegalArgumentException("Delete not supported for " + uri);
+
+    List<Map<String, Object>> rows = select(target, selection, selectionArgs);
+
+    for (final Map<String, Object> row : rows) {
+      final long id = toLong(row.get(BaseColumns._ID));
+
+      if (RAW_CONTACTS.equals(target.table) && !isSyncAdapter(uri)) {
+        // hidden until the sync adapter has synced the deletion
+        final Map<String, Object> old = new HashMap<>(row);
+        row.put(RawContacts.DELETED, 1);
+        row.put(RawContacts.DIRTY, 1);
+        logUndo(new Runnable() {
+          @Override
+          public void run() {
+            row.clear();
+            row.putAll(old);
+          }
+        });
+      } else if (RAW_CONTACTS.equals(target.table)) {
+        final List<Map<String, Object>> rawContactData = new ArrayList<>(getDataRows(id));
+        for (Map<String, Object> dataRow : rawContactData) removeData(dataRow);
+        rawContacts.remove(id);
+        logUndo(new Runnable() {
+          @Override
+          public void run() {
+            rawContacts.put(id, row);
+            for (Map<String, Object> dataRow : rawContactData) addData(dataRow);
+          }
+        });
+      } else if (DATA.equals(target.table)) {
+        removeData(row);
+        markDirty(uri, rawContacts.get(toLong(row.get(Data.RAW_CONTACT_ID))));
+        logUndo(new Runnable() {
+          @Override
+          public void run() {
+            addData(row);
+          }
+        });
+      } else if (GROUPS.equals(target.table)) {
+        groups.remove(id);
+        logUndo(new Runnable() {
+          @Override
+          public void run() {
+            groups.put(id, row);
+          }
+        });
+      }
+    }
+
+    return rows.size();
+  }
+
+  /**
+   * Returns the rows of the target matching the selection. Rows of the raw contacts and groups
+   * tables are returned as they are stored, so they can be updated in place. Data rows and the
+   * entities view also have the columns of their raw contact.
+   */
+  private List<Map<String, Object>> select(Target target, String selection, String[] selectionArgs) {
+    List<Term> terms = new ArrayList<>(parse(selection));
+    if (target.id != null) terms.add(new Term(BaseColumns._ID, Collections.singletonList((Object) String.valueOf(target.id))));
+
+    List<Map<String, Object>> rows = new ArrayList<>();
+
+    if (RAW_CONTACTS.equals(target.table)) {
+      for (Map<String, Object> row : getCandidates(rawContacts, terms, BaseColumns._ID, selectionArgs)) {
+        if (matches(row, terms, selectionArgs)) rows.add(row);
+      }
+    } else if (GROUPS.equals(target.table)) {
+      for (Map<String, Object> row : getCandidates(groups, terms, BaseColumns._ID, selectionArgs)) {
+        if (matches(row, terms, selectionArgs)) rows.add(row);
+      }
+    } else if (DATA.equals(target.table)) {
+      for (Map<String, Object> row : getDataCandidates(terms, selectionArgs)) {
+        if (matches(new JoinedRow(row, rawContacts.get(toLong(row.get(Data.RAW_CONTACT_ID)))), terms, selectionArgs)) rows.add(row);
+      }
+    } else if (ENTITIES.equals(target.table)) {
+      for (Map<String, Object> rawContact : getCandidates(rawContacts, terms, BaseColumns._ID, selectionArgs)) {
+        for (Map<String, Object> row : getEntityRows(rawContact)) {
+          if (matches(row, terms, selectionArgs)) rows.add(row);
+        }
+      }
+    } else {
+      throw new IllegalArgumentException("Query not supported for " + target.table);
+    }
+
+    return rows;
+  }
+
+  /**
+   * Uses the id term of the selection if there is one, instead of looking at every row.
+   */
+  private Collection<Map<String, Object>> getCandidates(Map<Long, Map<String, Object>> table, List<Term> terms, String idColumn, String[] selectionArgs) {
+    Term idTerm = findTerm(terms, idColumn);
+    if (idTerm == null) return table.values();
+
+    List<Map<String, Object>> candidates = new ArrayList<>();
+
+    for (String value : idTerm.getValues(selectionArgs)) {
+      Map<String, Object> row = table.get(Long.valueOf(value));
+      if (row != null) candidates.add(row);
+    }
+
+    return candidates;
+  }
+
+  private Collection<Map<String, Object>> getDataCandidates(List<Term> terms, String[] selectionArgs) {
+    Term rawContactTerm = findTerm(terms, Data.RAW_CONTACT_ID);
+    if (rawContactTerm == null) return getCandidates(data, terms, BaseColumns._ID, selectionArgs);
+
+    List<Map<String, Object>> candidates = new ArrayList<>();
+    for (String value : rawContactTerm.getValues(selectionArgs)) candidates.addAll(getDataRows(Long.valueOf(value)));
+    return candidates;
+  }
+
+  private List<Map<String, Object>> getEntityRows(Map<String, Object> rawContact) {
+    List<Map<String, Object>> rows = new ArrayList<>();
+    List<Map<String, Object>> rawContactData = getDataRows(toLong(rawContact.get(BaseColumns._ID)));
+
+    // one row without data for raw contacts without data rows
+    if (rawContactData.isEmpty()) rawContactData = Collections.singletonList(Collections.<String, Object>emptyMap());
+
+    for (Map<String, Object> dataRow : rawContactData) {
+      Map<String, Object> row = new HashMap<>(dataRow);
+      row.putAll(rawContact);
+      row.put(RawContactsEntity.DATA_ID, dataRow.get(BaseColumns._ID));
+      rows.add(row);
+    }
+
+    return rows;
+  }
+
+  private List<Map<String, Object>> getDataRows(long rawContactId) {
+    List<Map<String, Object>> rows = dataByRawContact.get(rawContactId);
+    return rows != null ? rows : Collections.<Map<String, Object>>emptyList();
+  }
+
+  private void addData(Map<String, Object> row) {
+    long rawContactId = toLong(row.get(Data.RAW_CONTACT_ID));
+    data.put(toLong(row.get(BaseColumns._ID)), row);
+
+    List<Map<String, Object>> rows = dataByRawContact.get(rawContactId);
+    if (rows == null) dataByRawContact.put(rawContactId, rows = new ArrayList<>());
+    rows.add(row);
+  }
+
+  private void removeData(Map<String, Object> row) {
+    long rawContactId = toLong(row.get(Data.RAW_CONTACT_ID));
+    data.remove(toLong(row.get(BaseColumns._ID)));
+
+    List<Map<String, Object>> rows = dataByRawContact.get(rawContactId);
+    if (rows != null) rows.remove(row);
+    if (rows != null && rows.isEmpty()) dataByRawContact.remove(rawContactId);
+  }
+
+  private boolean matches(Map<String, Object> row, List<Term> terms, String[] selectionArgs) {
+    for (Term term : terms) {
+      if (!term.matches(row.get(term.column), selectionArgs)) return false;
+    }
+
+    return true;
+  }
+
+  private Term findTerm(List<Term> terms, String column) {
+    for (Term term : terms) {
+      if (term.column.equals(column) && term.values != null) return term;
+    }
+
+    return null;
+  }
+
+  private List<Term> parse(String selection) {
+    if (selection == null || selection.trim().isEmpty()) return Collections.emptyList();
+
+    List<Term> terms = selections.get(selection);
+    if (terms != null) return terms;
+
+    terms = new ArrayList<>();
+    int arg = 0;
+
+    for (String part : selection.trim().split("\\s+AND\\s+")) {
+      Matcher matcher;
+      List<Object> values = new ArrayList<>();
+
+      if ((matcher = EQUALS.matcher(part)).matches()) {
+        arg = addValue(values, matcher.group(2), arg);
+      } else if ((matcher = IN.matcher(part)).matches()) {
+        for (String item : matcher.group(2).split(",")) arg = addValue(values, item.trim(), arg);
+      } else if ((matcher = IS_NULL.matcher(part)).matches()) {
+        terms.add(new Term(matcher.group(1), matcher.group(2) == null));
+        continue;
+      } else {
+        throw new IllegalArgumentException("Unsupported selection: " + selection);
+      }
+
+      terms.add(new Term(matcher.group(1), values));
+    }
+
+    selections.put(selection, terms);
+    return terms;
+  }
+
+  /**
+   * Adds a literal as a string and a placeholder as the index of its argument.
+   */
+  private int addValue(List<Object> values, String token, int arg) {
+    if ("?".equals(token)) {
+      values.add(arg);
+      return arg + 1;
+    }
+
+    values.add(token.startsWith("'") ? token.substring(1, token.length() - 1) : token);
+    return arg;
+  }
+
+  private void sort(List<Map<String, Object>> rows, String sortOrder) {
+    String[] parts = sortOrder.trim().split("\\s+");
+    final String column = parts[0];
+    final int direction = parts.length > 1 && "DESC".equalsIgnoreCase(parts[1]) ? -1 : 1;
+
+    Collections.sort(rows, new Comparator<Map<String, Object>>() {
+      @Override
+      public int compare(Map<String, Object> a, Map<String, Object> b) {
+        Object x = a.get(column);
+        Object y = b.get(column);
+        if (x == null || y == null) return direction * ((x == null ? 0 : 1) - (y == null ? 0 : 1));
+        if (x instanceof Number && y instanceof Number) return direction * Long.compare(((Number) x).longValue(), ((Number) y).longValue());
+        return direction * x.toString().compareTo(y.toString());
+      }
+    });
+  }
+
+  private void checkWrite(ContentValues values) {
+    if (values == null || failures.isEmpty()) return;
+
+    for (Map.Entry<String, String> failure : failures.entrySet()) {
+      Object value = values.get(failure.getKey());
+      if (value != null && failure.getValue().equals(value.toString())) {
+        throw new IllegalArgumentException("Refusing " + failure.getKey() + " = " + failure.getValue());
+      }
+    }
+  }
+
+  private void markDirty(Uri uri, Map<String, Object> rawContact) {
+    if (rawContact != null && !isSyncAdapter(uri)) rawContact.put(RawContacts.DIRTY, 1);
+  }
+
+  private boolean isSyncAdapter(Uri uri) {
+    return "true".equals(uri.getQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER));
+  }
+
+  private void logUndo(Runnable action) {
+    if (undo != null) undo.add(action);
+  }
+
+  private Target getTarget(Uri uri) {
+    if (!ContactsContract.AUTHORITY.equals(uri.getAuthority())) throw new IllegalArgumentException("Unknown URI " + uri);
+
+    List<String> segments = uri.getPathSegments();
+    String table = segments.isEmpty() ? "" : segments.get(0);
+
+    if (segments.size() == 1 && (RAW_CONTACTS.equals(table) || DATA.equals(table) || ENTITIES.equals(table) || GROUPS.equals(table) || PHOTO_DIMENSIONS.equals(table))) {
+      return new Target(table, null);
+    }
+
+    if (segments.size() == 2 && (RAW_CONTACTS.equals(table) || DATA.equals(table) || GROUPS.equals(table))) {
+      return new Target(table, Long.valueOf(segments.get(1)));
+    }
+
+    if (segments.size() == 3 && RAW_CONTACTS.equals(table) && RawContacts.Entity.CONTENT_DIRECTORY.equals(segments.get(2))) {
+      return new Target(ENTITIES, Long.valueOf(segments.get(1)));
+    }
+
+    throw new IllegalArgumentException("Unknown URI " + uri);
+  }
+
+  private static Map<String, Object> toMap(ContentValues values) {
+    Map<String, Object> row = new HashMap<>();
+    if (values != null) for (Map.Entry<String, Object> value : values.valueSet()) row.put(value.getKey(), value.getValue());
+    return row;
+  }
+
+  private static void putDefault(Map<String, Object> row, String column, Object value) {
+    if (!row.containsKey(column)) row.put(column, value);
+  }
+
+  private static long toLong(Object value) {
+    return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+  }
+
+  private static String getSelection(ContentProviderOperation op) {
+    try {
+      return (String) SELECTION.get(op);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Field getField(Class<?> type, String name) {
+    try {
+      Field field = type.getDeclaredField(name);
+      field.setAccessible(true);
+      return field;
+    } catch (NoSuchFieldException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static class Target {
+    private final String table;
+    private final Long id;
+
+    private Target(String table, Long id) {
+      this.table = table;
+      this.id = id;
+    }
+  }
+
+  /**
+   * A data row with the columns of its raw contact, for selections on both.
+   */
+  private static class JoinedRow extends AbstractMap<String, Object> {
+    private final Map<String, Object> data;
+    private final Map<String, Object> rawContact;
+
+    private JoinedRow(Map<String, Object> data, Map<String, Object> rawContact) {
+      this.data = data;
+      this.rawContact = rawContact;
+    }
+
+    @Override
+    public Object get(Object column) {
+      if (data.containsKey(column)) return data.get(column);
+      return rawContact != null ? rawContact.get(column) : null;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * One term of a selection. Values are literals, or the index of their selection argument.
+   */
+  private static class Term {
+    private final String column;
+    private final List<Object> values;
+    private final boolean isNull;
+
+    private Term(String column, List<Object> values) {
+      this.column = column;
+      this.values = values;
+      this.isNull = false;
+    }
+
+    private Term(String column, boolean isNull) {
+      this.column = column;
+      this.values = null;
+      this.isNull = isNull;
+    }
+
+    private List<String> getValues(String[] selectionArgs) {
+      List<String> resolved = new ArrayList<>(values.size());
+      for (Object value : values) resolved.add(value instanceof Integer ? selectionArgs[(Integer) value] : (String) value);
+      return resolved;
+    }
+
+    private boolean matches(Object value, String[] selectionArgs) {
+      if (values == null) return isNull == (value == null);
+      if (value == null) return false;
+
+      String string = value.toString();
+
+      for (Object expected : values) {
+        if (string.equals(expected instanceof Integer ? selectionArgs[(Integer) expected] : expected)) return true;
+      }
+
+      return false;
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package com.valtech.contactsync.benchmark;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.IContentProvider;
+import android.provider.ContactsContract;
+
+/**
+ * Resolves the contacts authority to the given provider in the same process, all other
+ * authorities are unknown.
+ */
+public class FakeContentResolver extends ContentResolver {
+  private final IContentProvider provider;
+
+  public FakeContentResolver(Context context, IContentProvider provider) {
+    super(context);
+    this.provider = provider;
+  }
+
+  @Override
+  protected IContentProvider acquireProvider(Context context, String name) {
+    return ContactsContract.AUTHORITY.equals(name) ? provider : null;
+  }
+
+  @Override
+  protected IContentProvider acquireUnstableProvider(Context context, String name) {
+    return acquireProvider(context, name);
+  }
+
+  @Override
+  public boolean releaseProvider(IContentProvider provider) {
+    return true;
+  }
+
+  @Override
+  public boolean releaseUnstableProvider(IContentProvider provider) {
+    return true;
+  }
+
+  @Override
+  public void unstableProviderDied(IContentProvider provider) {
+  }
+}
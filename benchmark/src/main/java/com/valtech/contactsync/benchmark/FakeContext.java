@@ -0,0 +1,156 @@
+package com.valtech.contactsync.benchmark;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.IContentProvider;
+import android.content.res.Resources;
+import com.valtech.contactsync.R;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Builds a context for running the sync on the JVM. Its resources are the values of the app, read
+ * from res/values, and its content resolver talks to the given provider. The resource directory
+ * is taken from the system property app.res.
+ */
+public class FakeContext {
+  private static final String RES_DIRECTORY = System.getProperty("app.res", "../app/src/main/res");
+
+  private FakeContext() {
+  }
+
+  /**
+   * Returns a context with the app resources, where the given strings replace those of the same
+   * name. Use it to point the IDP URLs at a stand-in server.
+   */
+  public static Context create(IContentProvider provider, File cacheDir, Map<String, String> strings) {
+    final Map<String, Object> values = readValues(new File(RES_DIRECTORY, "values"));
+    for (Map.Entry<String, String> string : strings.entrySet()) values.put("string/" + string.getKey(), string.getValue());
+    final Map<Integer, String> names = readResourceNames();
+
+    Resources resources = mock(Resources.class, new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) {
+        String method = invocation.getMethod().getName();
+        Object[] args = invocation.getArguments();
+        if (!method.startsWith("get") || args.length == 0 || !(args[0] instanceof Integer)) return null;
+
+        String name = names.get(args[0]);
+        if (name == null) throw new Resources.NotFoundException("Resource ID #0x" + Integer.toHexString((Integer) args[0]));
+
+        if (method.equals("getString") && args.length == 2) return String.format((String) get(values, name), (Object[]) args[1]);
+        if (method.equals("getString") || method.equals("getText")) return get(values, name);
+        if (method.equals("getInteger")) return Integer.valueOf((String) get(values, name));
+        if (method.equals("getBoolean")) return Boolean.valueOf((String) get(values, name));
+        if (method.equals("getStringArray")) return get(values, name);
+        throw new UnsupportedOperationException("Resources." + method + "() is not available on the JVM.");
+      }
+    });
+
+    Context context = mock(Context.class);
+    ContentResolver resolver = new FakeContentResolver(context, provider);
+    when(context.getApplicationContext()).thenReturn(context);
+    when(context.getResources()).thenReturn(resources);
+    when(context.getContentResolver()).thenReturn(resolver);
+    when(context.getCacheDir()).thenReturn(cacheDir);
+    when(context.getPackageName()).thenReturn("com.valtech.contactsync");
+    return context;
+  }
+
+  private static Object get(Map<String, Object> values, String name) {
+    Object value = values.get(name);
+    if (value == null) throw new Resources.NotFoundException("No value for " + name + ", is res/values/idp.xml missing?");
+    return value;
+  }
+
+  /**
+   * Maps the ids of the generated R class to type/name.
+   */
+  private static Map<Integer, String> readResourceNames() {
+    Map<Integer, String> names = new HashMap<>();
+
+    try {
+      for (Class<?> type : R.class.getClasses()) {
+        for (Field field : type.getFields()) {
+          if (Modifier.isStatic(field.getModifiers()) && field.getType() == int.class) {
+            names.put(field.getInt(null), type.getSimpleName() + "/" + field.getName());
+          }
+        }
+      }
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+
+    return names;
+  }
+
+  /**
+   * Reads the strings, integers, booleans and string arrays of all files in the directory, keyed by
+   * type/name like "integer/sync_batch_size".
+   */
+  private static Map<String, Object> readValues(File directory) {
+    File[] files = directory.listFiles();
+    if (files == null) throw new IllegalStateException("No resources found in " + directory.getAbsolutePath() + ", set app.res.");
+
+    Map<String, Object> values = new HashMap<>();
+
+    try {
+      DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+
+      for (File file : files) {
+        if (!file.getName().endsWith(".xml")) continue;
+        NodeList nodes = builder.parse(file).getDocumentElement().getChildNodes();
+
+        for (int i = 0; i < nodes.getLength(); i++) {
+          if (nodes.item(i).getNodeType() != Node.ELEMENT_NODE) continue;
+          Element element = (Element) nodes.item(i);
+          String name = element.getAttribute("name");
+
+          switch (element.getTagName()) {
+            case "string":
+              values.put("string/" + name, unescape(element.getTextContent()));
+              break;
+            case "integer":
+            case "bool":
+              values.put(element.getTagName() + "/" + name, element.getTextContent().trim());
+              break;
+            case "string-array":
+              values.put("array/" + name, readItems(element));
+              break;
+          }
+        }
+      }
+    } catch (Exception e) {
+      throw new IllegalStateException("Could not read resources from " + directory.getAbsolutePath() + ".", e);
+    }
+
+    return values;
+  }
+
+  private static String[] readItems(Element array) {
+    NodeList items = array.getElementsByTagName("item");
+    List<String> values = new ArrayList<>();
+    for (int i = 0; i < items.getLength(); i++) values.add(unescape(items.item(i).getTextContent()));
+    return values.toArray(new String[values.size()]);
+  }
+
+  private static String unescape(String value) {
+    return value.replace("\\n", "\n").replace("\\'", "'").replace("\\\"", "\"");
+  }
+}
@@ -0,0 +1,364 @@
+package com.valtech.contactsync.benchmark;
+
+import com.google.gson.Gson;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local stand-in for Valtech IDP, serving the token, user info and all user infos endpoints over
+ * HTTP/1.1 with keep-alive. The directory is served from a {@link Directory}, with an ETag and a
+ * since cursor, filtered by the country parameter and gzip compressed when asked for, like the real
+ * resource server. Each of these can be turned off to stand in for an older server.
+ *
+ * Counts the connections it accepted, the requests it served and the bytes it wrote, and keeps the
+ * requests for tests to look at.
+ */
+public class IdpStandIn implements Closeable {
+  public static final String ACCESS_TOKEN = "access-token";
+
+  private static final Gson GSON = new Gson();
+
+  private final Directory directory;
+  private final ServerSocket serverSocket;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final Set<Socket> sockets = Collections.synchronizedSet(new HashSet<Socket>());
+  private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+  private final AtomicInteger connectionsAccepted = new AtomicInteger();
+  private final AtomicLong bytesServed = new AtomicLong();
+
+  private volatile boolean conditionalSupported = true;
+  private volatile boolean deltaSupported = true;
+  private volatile boolean countrySupported = true;
+  private volatile boolean gzipSupported = true;
+  private volatile int throttleBytes;
+  private volatile long throttleMillis;
+
+  public IdpStandIn(Directory directory) throws IOException {
+    this.directory = directory;
+    this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        accept();
+      }
+    });
+  }
+
+  public String getUrl() {
+    return "http://127.0.0.1:" + serverSocket.getLocalPort();
+  }
+
+  /**
+   * Returns the IDP settings of the app, pointed at this server.
+   */
+  public Map<String, String> getIdpStrings() {
+    Map<String, String> strings = new HashMap<>();
+    strings.put("idp_authorize_url", getUrl() + "/oauth2/authorize");
+    strings.put("idp_token_url", getUrl() + "/oauth2/token");
+    strings.put("idp_user_info_url", getUrl() + "/api/users/me");
+    strings.put("idp_all_user_infos_url", getUrl() + "/api/users");
+    strings.put("idp_client_id", "valtech.contactsync.android");
+    strings.put("idp_client_secret", "secret");
+    strings.put("idp_initial_scope", "profile email phone vidp:get_users vidp:offline");
+    strings.put("idp_follow_up_scope", "vidp:get_users");
+    return strings;
+  }
+
+  public void setConditionalSupported(boolean conditionalSupported) {
+    this.conditionalSupported = conditionalSupported;
+  }
+
+  public void setDeltaSupported(boolean deltaSupported) {
+    this.deltaSupported = deltaSupported;
+  }
+
+  public void setCountrySupported(boolean countrySupported) {
+    this.countrySupported = countrySupported;
+  }
+
+  public void setGzipSupported(boolean gzipSupported) {
+    this.gzipSupported = gzipSupported;
+  }
+
+  /**
+   * Writes response bodies in parts of the given size, waiting between them, like a slow network.
+   */
+  public void setThrottle(int bytes, long millis) {
+    this.throttleBytes = bytes;
+    this.throttleMillis = millis;
+  }
+
+  public int getConnectionsAccepted() {
+    return connectionsAccepted.get();
+  }
+
+  public long getBytesServed() {
+    return bytesServed.get();
+  }
+
+  public List<Request> getRequests() {
+    synchronized (requests) {
+      return new ArrayList<>(requests);
+    }
+  }
+
+  public void resetCounters() {
+    connectionsAccepted.set(0);
+    bytesServed.set(0);
+    requests.clear();
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+
+    synchronized (sockets) {
+      for (Socket socket : sockets) socket.close();
+    }
+
+    executor.shutdownNow();
+  }
+
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      try {
+        final Socket socket = serverSocket.accept();
+        connectionsAccepted.incrementAndGet();
+        sockets.add(socket);
+
+        executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            serve(socket);
+          }
+        });
+      } catch (IOException e) {
+        // closed
+      }
+    }
+  }
+
+  /**
+   * Serves requests on the connection until the client closes it.
+   */
+  private void serve(Socket socket) {
+    try {
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = new CountingOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+      while (true) {
+        Request request = Request.read(in);
+        if (request == null) break;
+        requests.add(request);
+        respond(request, out);
+        out.flush();
+        if ("close".equalsIgnoreCase(request.getHeader("Connection"))) break;
+      }
+    } catch (IOException e) {
+      // the client dropped the connection
+    } finally {
+      sockets.remove(socket);
+
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // already closed
+      }
+    }
+  }
+
+  private void respond(Request request, OutputStream out) throws IOException {
+    if (request.path.equals("/oauth2/token") && request.method.equals("POST")) {
+      Map<String, Object> token = new LinkedHashMap<>();
+      token.put("access_token", ACCESS_TOKEN);
+      token.put("refresh_token", "refresh-token");
+      token.put("expires_in", 3600);
+      writeJson(request, out, 200, Collections.<String, String>emptyMap(), token);
+    } else if (!request.path.startsWith("/api/")) {
+      writeResponse(request, out, 404, Collections.<String, String>emptyMap(), new byte[0]);
+    } else if (!("Bearer " + ACCESS_TOKEN).equals(request.getHeader("Authorization"))) {
+      writeResponse(request, out, 401, Collections.singletonMap("WWW-Authenticate", "Bearer error=\"invalid_token\""), new byte[0]);
+    } else if (request.path.equals("/api/users/me")) {
+      writeJson(request, out, 200, Collections.<String, String>emptyMap(), directory.getUsers(null, 0).get(0));
+    } else if (request.path.equals("/api/users")) {
+      writeDirectory(request, out);
+    } else {
+      writeResponse(request, out, 404, Collections.<String, String>emptyMap(), new byte[0]);
+    }
+  }
+
+  private void writeDirectory(Request request, OutputStream out) throws IOException {
+    int version = directory.getVersion();
+    String country = request.getParameter("country");
+    List<String> countries = countrySupported && country != null ? Arrays.asList(country.split(",")) : null;
+    String etag = "\"" + version + "-" + (countries != null ? country : "all") + "\"";
+
+    Map<String, String> headers = new LinkedHashMap<>();
+
+    if (conditionalSupported) {
+      headers.put("ETag", etag);
+      headers.put("X-Sync-Cursor", String.valueOf(version));
+
+      if (etag.equals(request.getHeader("If-None-Match"))) {
+        writeResponse(request, out, 304, headers, new byte[0]);
+        return;
+      }
+    }
+
+    int since = 0;
+    String cursor = request.getParameter("since");
+
+    if (conditionalSupported && deltaSupported && cursor != null) {
+      since = Integer.parseInt(cursor);
+      headers.put("X-Sync-Delta", "true");
+    }
+
+    writeJson(request, out, 200, headers, directory.getUsers(countries, since));
+  }
+
+  private void writeJson(Request request, OutputStream out, int status, Map<String, String> headers, Object body) throws IOException {
+    Map<String, String> jsonHeaders = new LinkedHashMap<>(headers);
+    jsonHeaders.put("Content-Type", "application/json; charset=utf-8");
+    writeResponse(request, out, status, jsonHeaders, GSON.toJson(body).getBytes("UTF-8"));
+  }
+
+  private void writeResponse(Request request, OutputStream out, int status, Map<String, String> headers, byte[] body) throws IOException {
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    boolean gzip = gzipSupported && body.length > 0 && acceptEncoding != null && acceptEncoding.contains("gzip");
+    if (gzip) body = gzip(body);
+
+    StringBuilder head = new StringBuilder();
+    head.append("HTTP/1.1 ").append(status).append(' ').append(getReason(status)).append("\r\n");
+    for (Map.Entry<String, String> header : headers.entrySet()) head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    if (gzip) head.append("Content-Encoding: gzip\r\n");
+    if (status != 304) head.append("Content-Length: ").append(body.length).append("\r\n");
+    head.append("\r\n");
+    out.write(head.toString().getBytes("ISO-8859-1"));
+
+    if (throttleBytes <= 0) {
+      out.write(body);
+      return;
+    }
+
+    for (int offset = 0; offset < body.length; offset += throttleBytes) {
+      out.write(body, offset, Math.min(throttleBytes, body.length - offset));
+      out.flush();
+
+      try {
+        Thread.sleep(throttleMillis);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  private byte[] gzip(byte[] body) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(buffer);
+    out.write(body);
+    out.close();
+    return buffer.toByteArray();
+  }
+
+  private String getReason(int status) {
+    switch (status) {
+      case 200:
+        return "OK";
+      case 304:
+        return "Not Modified";
+      case 401:
+        return "Unauthorized";
+      default:
+        return "Not Found";
+    }
+  }
+
+  /**
+   * Counts what reaches the socket, a response the client stops reading is only counted in part.
+   */
+  private class CountingOutputStream extends FilterOutputStream {
+    private CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      bytesServed.addAndGet(len);
+    }
+  }
+
+  public static class Request {
+    public final String method;
+    public final String path;
+    public final Map<String, String> parameters = new HashMap<>();
+    public final Map<String, String> headers = new HashMap<>();
+    public byte[] body;
+
+    private Request(String method, String target) throws UnsupportedEncodingException {
+      this.method = method;
+      int query = target.indexOf('?');
+      this.path = query >= 0 ? target.substring(0, query) : target;
+      if (query < 0) return;
+
+      for (String parameter : target.substring(query + 1).split("&")) {
+        int equals = parameter.indexOf('=');
+        if (equals < 0) continue;
+        parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+      }
+    }
+
+    public String getParameter(String name) {
+      return parameters.get(name);
+    }
+
+    public String getHeader(String name) {
+      return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * Reads the next request of the connection, returns null when the client has closed it.
+     */
+    private static Request read(InputStream in) throws IOException {
+      String requestLine = readLine(in);
+      if (requestLine == null || requestLine.isEmpty()) return null;
+
+      String[] parts = requestLine.split(" ");
+      Request request = new Request(parts[0], parts[1]);
+
+      for (String line = readLine(in); line != null && !line.isEmpty(); line = readLine(in)) {
+        int colon = line.indexOf(':');
+        request.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+      }
+
+      String contentLength = request.getHeader("Content-Length");
+      request.body = new byte[contentLength != null ? Integer.parseInt(contentLength) : 0];
+      new DataInputStream(in).readFully(request.body);
+      return request;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+      StringBuilder line = new StringBuilder();
+
+      while (true) {
+        int c = in.read();
+        if (c == -1) return line.length() > 0 ? line.toString() : null;
+        if (c == '\n') break;
+        if (c != '\r') line.append((char) c);
+      }
+
+      return line.toString();
+    }
+  }
+}
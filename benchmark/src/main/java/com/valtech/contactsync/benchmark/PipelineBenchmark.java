@@ -0,0 +1,64 @@
+package com.valtech.contactsync.benchmark;
+
+import android.content.SyncResult;
+import com.valtech.contactsync.Device;
+import com.valtech.contactsync.SyncMetrics;
+
+/**
+ * Runs an initial sync of the whole directory, 10k users unless other sizes are given, with the
+ * contacts synced while the directory is parsed and, as before, only once it has been downloaded:
+ *
+ * - local: the stand-in writes the directory as fast as it can
+ * - slow: the stand-in writes 8 KB every 50 ms, about 160 KB/s
+ *
+ * Reports the median duration, the time until the first batch reached the provider and the
+ * contacts synced per second.
+ */
+public class PipelineBenchmark {
+  private static final String[] NETWORKS = { "local", "slow" };
+  private static final int[] THROTTLE_BYTES = { 0, 8 * 1024 };
+  private static final long[] THROTTLE_MILLIS = { 0, 50 };
+
+  public static void main(String[] args) throws Exception {
+    int warmup = Benchmarks.getWarmup();
+    int iterations = Benchmarks.getIterations();
+
+    System.out.println(String.format("%8s  %-7s %-10s %9s %14s %12s", "size", "network", "mode", "ms", "first write ms", "contacts/s"));
+
+    for (int size : Benchmarks.getSizes("10000")) {
+      for (int network = 0; network < NETWORKS.length; network++) {
+        for (boolean streaming : new boolean[] { false, true }) {
+          long[] millis = new long[iterations];
+          long[] firstWriteMillis = new long[iterations];
+          int contacts = 0;
+
+          for (int run = 0; run < warmup + iterations; run++) {
+            Directory directory = Directory.generate(size);
+            IdpStandIn idp = new IdpStandIn(directory);
+            idp.setThrottle(THROTTLE_BYTES[network], THROTTLE_MILLIS[network]);
+
+            try {
+              Device device = new Device(idp, Benchmarks.createCacheDir());
+              for (String country : Directory.COUNTRIES) device.enableCountry(country);
+
+              long start = System.nanoTime();
+              SyncResult syncResult = device.sync(new SyncMetrics(null), streaming);
+              long elapsed = (System.nanoTime() - start) / 1000000;
+
+              if (run < warmup) continue;
+              millis[run - warmup] = elapsed;
+              firstWriteMillis[run - warmup] = (device.getProvider().getFirstBatchNanos() - start) / 1000000;
+              contacts = (int) syncResult.stats.numInserts;
+            } finally {
+              idp.close();
+            }
+          }
+
+          long medianMillis = Benchmarks.median(millis);
+          System.out.println(String.format("%8d  %-7s %-10s %9d %14d %12d", size, NETWORKS[network], streaming ? "streaming" : "buffered",
+            medianMillis, Benchmarks.median(firstWriteMillis), contacts * 1000L / Math.max(medianMillis, 1)));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package com.valtech.contactsync.benchmark;
+
+import android.content.ContentResolver;
+import com.valtech.contactsync.ContactTable;
+import com.valtech.contactsync.Device;
+import com.valtech.contactsync.LegacyContactReader;
+import com.valtech.contactsync.LocalContact;
+import com.valtech.contactsync.LocalContactReader;
+import com.valtech.contactsync.SyncMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads every contact of the account with name, email and phone numbers, before and after the
+ * bulk reader:
+ *
+ * - per contact: the raw contacts and then one entity query per raw contact, as the sync used to
+ * - bulk: the raw contacts in one query and their data a few hundred contacts per query
+ *
+ * Every query is a binder call on a device, the in-memory provider makes the calls themselves
+ * cheap, so compare the calls first. Reports the median duration and heap allocation as well.
+ */
+public class ReaderBenchmark {
+  public static void main(String[] args) throws Exception {
+    AllocationMeter meter = new AllocationMeter();
+    int warmup = Benchmarks.getWarmup();
+    int iterations = Benchmarks.getIterations();
+
+    System.out.println(String.format("%8s  %-12s %9s %10s %8s %9s", "size", "reader", "ms", "alloc MB", "calls", "contacts"));
+
+    for (int size : Benchmarks.getSizes()) {
+      Directory directory = Directory.generate(size);
+      IdpStandIn idp = new IdpStandIn(directory);
+
+      try {
+        Device device = new Device(idp, Benchmarks.createCacheDir());
+        for (String country : Directory.COUNTRIES) device.enableCountry(country);
+        device.sync(new SyncMetrics(null));
+
+        report(size, "per contact", device, meter, warmup, iterations, true);
+        report(size, "bulk", device, meter, warmup, iterations, false);
+      } finally {
+        idp.close();
+      }
+    }
+  }
+
+  private static void report(int size, String name, Device device, AllocationMeter meter, int warmup, int iterations, boolean legacy) throws InterruptedException {
+    long[] millis = new long[iterations];
+    long[] allocated = new long[iterations];
+    int calls = 0;
+    int contacts = 0;
+
+    for (int run = 0; run < warmup + iterations; run++) {
+      device.getProvider().resetCounters();
+      System.gc();
+
+      meter.start();
+      long start = System.nanoTime();
+      contacts = legacy ? readPerContact(device) : readBulk(device);
+      long elapsed = (System.nanoTime() - start) / 1000000;
+      long bytes = meter.stop();
+
+      if (run < warmup) continue;
+      millis[run - warmup] = elapsed;
+      allocated[run - warmup] = bytes;
+      calls = device.getProvider().getCalls();
+    }
+
+    System.out.println(String.format("%8d  %-12s %9d %10s %8d %9d", size, name,
+      Benchmarks.median(millis), Benchmarks.megabytes(Benchmarks.median(allocated)), calls, contacts));
+  }
+
+  private static int readPerContact(Device device) {
+    ContentResolver resolver = device.getContext().getContentResolver();
+    return new LegacyContactReader(resolver).getContacts(device.getAccount()).size();
+  }
+
+  private static int readBulk(Device device) {
+    LocalContactReader reader = new LocalContactReader(device.getContext().getContentResolver());
+    ContactTable table = reader.getContacts(device.getAccount(), new ArrayList<LocalContact>());
+    List<LocalContact> contacts = new ArrayList<>(table.size());
+
+    for (int row = 0; row < table.size(); row++) contacts.add(table.getContact(row));
+
+    reader.loadData(contacts);
+    return contacts.size();
+  }
+}
@@ -0,0 +1,115 @@
+package com.valtech.contactsync.benchmark;
+
+import android.content.SyncResult;
+import com.valtech.contactsync.Device;
+import com.valtech.contactsync.SyncMetrics;
+
+/**
+ * Runs the contact sync against the IDP stand-in and the fake provider, for each directory size:
+ *
+ * - initial: the first sync of an empty device, five of the six countries enabled
+ * - no-op: a sync right after it, with nothing changed
+ * - 5% churn: a sync after 5% of the users changed a name or phone number
+ * - country on: a sync after selecting the sixth country
+ * - country off: unselecting it again, which deletes its contacts, and a sync
+ *
+ * Reports the median duration and heap allocation of each scenario, with the calls made to the
+ * provider, the operations applied and the bytes the stand-in served.
+ */
+public class SyncBenchmark {
+  private static final String[] SCENARIOS = { "initial", "no-op", "5% churn", "country on", "country off" };
+  private static final String TOGGLED_COUNTRY = "us";
+
+  public static void main(String[] args) throws Exception {
+    AllocationMeter meter = new AllocationMeter();
+    int warmup = Benchmarks.getWarmup();
+    int iterations = Benchmarks.getIterations();
+
+    System.out.println(String.format("%8s  %-12s %9s %10s %8s %8s %10s  %s", "size", "scenario", "ms", "alloc MB", "calls", "ops", "served KB", "result"));
+
+    for (int size : Benchmarks.getSizes()) {
+      Measurement[][] runs = new Measurement[iterations][];
+
+      for (int run = 0; run < warmup + iterations; run++) {
+        Measurement[] measurements = run(size, meter);
+        if (run >= warmup) runs[run - warmup] = measurements;
+      }
+
+      for (int scenario = 0; scenario < SCENARIOS.length; scenario++) {
+        long[] millis = new long[iterations];
+        long[] allocated = new long[iterations];
+
+        for (int i = 0; i < iterations; i++) {
+          millis[i] = runs[i][scenario].millis;
+          allocated[i] = runs[i][scenario].allocated;
+        }
+
+        Measurement last = runs[iterations - 1][scenario];
+        System.out.println(String.format("%8d  %-12s %9d %10s %8d %8d %10d  %s", size, SCENARIOS[scenario],
+          Benchmarks.median(millis), Benchmarks.megabytes(Benchmarks.median(allocated)),
+          last.providerCalls, last.operations, last.bytesServed / 1024, last.result));
+      }
+    }
+  }
+
+  private static Measurement[] run(int size, AllocationMeter meter) throws Exception {
+    Directory directory = Directory.generate(size);
+    IdpStandIn idp = new IdpStandIn(directory);
+
+    try {
+      Device device = new Device(idp, Benchmarks.createCacheDir());
+      for (String country : Directory.COUNTRIES) if (!country.equals(TOGGLED_COUNTRY)) device.enableCountry(country);
+
+      Measurement[] measurements = new Measurement[SCENARIOS.length];
+      measurements[0] = measure(device, idp, meter, null);
+      measurements[1] = measure(device, idp, meter, null);
+      directory.churn(0.05);
+      measurements[2] = measure(device, idp, meter, null);
+      device.enableCountry(TOGGLED_COUNTRY);
+      measurements[3] = measure(device, idp, meter, null);
+      measurements[4] = measure(device, idp, meter, TOGGLED_COUNTRY);
+
+      if (device.getSyncIndex().size() != device.getProvider().getRawContactCount()) {
+        throw new IllegalStateException("Sync index does not match the provider after the run.");
+      }
+
+      return measurements;
+    } finally {
+      idp.close();
+    }
+  }
+
+  /**
+   * Measures one sync, after unselecting the country if one is given.
+   */
+  private static Measurement measure(Device device, IdpStandIn idp, AllocationMeter meter, String disabledCountry) throws InterruptedException {
+    device.getProvider().resetCounters();
+    idp.resetCounters();
+    System.gc();
+
+    meter.start();
+    long start = System.nanoTime();
+    if (disabledCountry != null) device.disableCountry(disabledCountry);
+    SyncResult syncResult = device.sync(new SyncMetrics(null));
+    long millis = (System.nanoTime() - start) / 1000000;
+    long allocated = meter.stop();
+
+    Measurement measurement = new Measurement();
+    measurement.millis = millis;
+    measurement.allocated = allocated;
+    measurement.providerCalls = device.getProvider().getCalls();
+    measurement.operations = device.getProvider().getOperations();
+    measurement.bytesServed = idp.getBytesServed();
+    measurement.result = String.format("%d inserts, %d updates, %d deletes", syncResult.stats.numInserts, syncResult.stats.numUpdates, syncResult.stats.numDeletes);
+    return measurement;
+  }
+
+  private static class Measurement {
+    private long millis;
+    private long allocated;
+    private int providerCalls;
+    private int operations;
+    private long bytesServed;
+    private String result;
+  }
+}
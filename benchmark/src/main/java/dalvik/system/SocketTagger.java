@@ -0,0 +1,39 @@
+package dalvik.system;
+
+import java.io.FileDescriptor;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Stands in for the Dalvik class on the JVM. The HTTP client of the framework tags its sockets for
+ * traffic stats, which needs the file descriptor of a Dalvik socket. Here nothing is tagged.
+ */
+public abstract class SocketTagger {
+  private static SocketTagger tagger = new SocketTagger() {
+    @Override
+    public void tag(FileDescriptor socketDescriptor) {
+    }
+
+    @Override
+    public void untag(FileDescriptor socketDescriptor) {
+    }
+  };
+
+  public abstract void tag(FileDescriptor socketDescriptor) throws SocketException;
+
+  public abstract void untag(FileDescriptor socketDescriptor) throws SocketException;
+
+  public final void tag(Socket socket) throws SocketException {
+  }
+
+  public final void untag(Socket socket) throws SocketException {
+  }
+
+  public static synchronized void set(SocketTagger tagger) {
+    SocketTagger.tagger = tagger;
+  }
+
+  public static synchronized SocketTagger get() {
+    return tagger;
+  }
+}
@@ -0,0 +1,79 @@
+package com.valtech.contactsync;
+
+import android.content.SyncResult;
+import com.valtech.contactsync.benchmark.Benchmarks;
+import com.valtech.contactsync.benchmark.Directory;
+import com.valtech.contactsync.benchmark.IdpStandIn;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceSyncTest {
+  private Directory directory;
+  private IdpStandIn idp;
+  private Device device;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Directory.generate(300);
+    idp = new IdpStandIn(directory);
+    device = new Device(idp, Benchmarks.createCacheDir());
+    device.enableCountry("se");
+    device.enableCountry("dk");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    idp.close();
+  }
+
+  @Test
+  public void initialSyncInsertsTheEnabledCountries() throws Exception {
+    SyncResult syncResult = device.sync(new SyncMetrics(null));
+
+    int expected = directory.size(Arrays.asList("se", "dk"));
+    assertEquals(expected, syncResult.stats.numInserts);
+    assertEquals(expected, device.getProvider().getRawContactCount());
+    assertEquals(expected, device.getSyncIndex().size());
+  }
+
+  @Test
+  public void syncWithNothingChangedMakesNoProviderCalls() throws Exception {
+    device.sync(new SyncMetrics(null));
+    device.getProvider().resetCounters();
+
+    SyncResult syncResult = device.sync(new SyncMetrics(null));
+
+    assertEquals(0, syncResult.stats.numInserts + syncResult.stats.numUpdates + syncResult.stats.numDeletes);
+    assertEquals(0, device.getProvider().getCalls());
+  }
+
+  @Test
+  public void syncAfterChurnUpdatesTheChangedContacts() throws Exception {
+    device.sync(new SyncMetrics(null));
+    directory.churn(0.05);
+
+    SyncResult syncResult = device.sync(new SyncMetrics(null));
+
+    assertTrue(syncResult.stats.numUpdates > 0);
+    assertEquals(0, syncResult.stats.numInserts);
+    assertEquals(device.getProvider().getRawContactCount(), device.getSyncIndex().size());
+  }
+
+  @Test
+  public void unselectingACountryRemovesItsContacts() throws Exception {
+    device.sync(new SyncMetrics(null));
+
+    device.disableCountry("dk");
+    device.sync(new SyncMetrics(null));
+
+    int expected = directory.size(Arrays.asList("se"));
+    assertEquals(expected, device.getProvider().getRawContactCount());
+    assertEquals(expected, device.getSyncIndex().size());
+  }
+}
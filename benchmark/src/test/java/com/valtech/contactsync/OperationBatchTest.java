@@ -0,0 +1,97 @@
+package com.valtech.contactsync;
+
+import android.content.SyncResult;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.RawContacts;
+import com.valtech.contactsync.api.UserInfoResponse;
+import com.valtech.contactsync.benchmark.Benchmarks;
+import com.valtech.contactsync.benchmark.Directory;
+import com.valtech.contactsync.benchmark.IdpStandIn;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class OperationBatchTest {
+  private Directory directory;
+  private IdpStandIn idp;
+  private Device device;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Directory.generate(100);
+    idp = new IdpStandIn(directory);
+    device = new Device(idp, Benchmarks.createCacheDir());
+    device.enableCountry("se");
+    device.sync(new SyncMetrics(null));
+
+    // the provider commits every contact of a batch before the one that fails
+    device.getProvider().setCommitAtYieldPoints(true);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    idp.close();
+  }
+
+  @Test
+  public void retriedBatchDoesNotInsertDataRowsTwice() throws Exception {
+    List<UserInfoResponse> users = directory.getUsers(Collections.singletonList("se"), 0);
+    UserInfoResponse updated = null;
+    UserInfoResponse failing = null;
+
+    for (UserInfoResponse user : users) {
+      if (updated == null && user.fixedPhoneNumber == null) {
+        updated = user;
+      } else if (updated != null && failing == null) {
+        failing = user;
+      }
+    }
+
+    // the contact updated first gets a fixed phone number, the provider refuses the second one
+    updated.fixedPhoneNumber = "+46 8 123 45 67";
+    failing.name = "Refused Name";
+    directory.add(updated);
+    directory.add(failing);
+    device.getProvider().failWrites(StructuredName.DISPLAY_NAME, failing.name);
+
+    SyncResult syncResult = device.sync(new SyncMetrics(null));
+
+    assertEquals(1, syncResult.stats.numSkippedEntries);
+    assertEquals(Collections.singletonList(updated.fixedPhoneNumber), getPhoneNumbers(updated.email, Phone.TYPE_WORK));
+  }
+
+  @Test
+  public void contactRefusedByTheProviderIsSkipped() throws Exception {
+    UserInfoResponse user = new UserInfoResponse();
+    user.email = "refused@valtech.se";
+    user.name = "Refused";
+    user.countryCode = "se";
+    directory.add(user);
+    device.getProvider().failWrites(RawContacts.SOURCE_ID, user.email);
+
+    SyncResult syncResult = device.sync(new SyncMetrics(null));
+
+    assertEquals(1, syncResult.stats.numSkippedEntries);
+    assertEquals(0, device.getProvider().getRawContacts(user.email).size());
+    assertEquals(-1, device.getSyncIndex().getContacts().find(user.email));
+  }
+
+  private List<String> getPhoneNumbers(String email, int type) {
+    long rawContactId = ((Number) device.getProvider().getRawContacts(email).get(0).get(RawContacts._ID)).longValue();
+    List<String> numbers = new ArrayList<>();
+
+    for (Map<String, Object> row : device.getProvider().getData(rawContactId, Phone.CONTENT_ITEM_TYPE)) {
+      if (String.valueOf(type).equals(String.valueOf(row.get(Phone.TYPE)))) numbers.add((String) row.get(Phone.NUMBER));
+    }
+
+    return numbers;
+  }
+}
@@ -0,0 +1,250 @@
+package com.valtech.contactsync.api;
+
+import com.valtech.contactsync.benchmark.Benchmarks;
+import com.valtech.contactsync.benchmark.Directory;
+import com.valtech.contactsync.benchmark.FakeContactsProvider;
+import com.valtech.contactsync.benchmark.FakeContext;
+import com.valtech.contactsync.benchmark.IdpStandIn;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ApiClientTest {
+  private Directory directory;
+  private IdpStandIn idp;
+  private ApiClient apiClient;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Directory.generate(200);
+    idp = new IdpStandIn(directory);
+    apiClient = new ApiClient(FakeContext.create(new FakeContactsProvider(), Benchmarks.createCacheDir(), idp.getIdpStrings()));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    idp.close();
+  }
+
+  @Test
+  public void requestsReuseOneConnection() throws Exception {
+    apiClient.getAccessToken("refresh-token");
+    apiClient.getUserInfoMeResource(IdpStandIn.ACCESS_TOKEN);
+    getDirectory(new SyncMarker(), "");
+    apiClient.getAccessToken("refresh-token");
+    getDirectory(new SyncMarker(), "se");
+
+    assertEquals(5, idp.getRequests().size());
+    assertEquals(1, idp.getConnectionsAccepted());
+  }
+
+  @Test
+  public void connectionIsReusedAfterNotModified() throws Exception {
+    SyncMarker marker = getDirectory(new SyncMarker(), "").marker;
+    getDirectory(marker, "");
+    getDirectory(marker, "");
+
+    assertEquals(1, idp.getConnectionsAccepted());
+  }
+
+  @Test
+  public void idleConnectionIsKeptByEviction() throws Exception {
+    apiClient.getUserInfoMeResource(IdpStandIn.ACCESS_TOKEN);
+    apiClient.evictIdleConnections();
+    apiClient.getUserInfoMeResource(IdpStandIn.ACCESS_TOKEN);
+
+    assertEquals(1, idp.getConnectionsAccepted());
+  }
+
+  @Test
+  public void unchangedDirectoryIsNotModified() throws Exception {
+    DirectoryResult first = getDirectory(new SyncMarker(), "");
+    idp.resetCounters();
+
+    DirectoryResult second = getDirectory(first.marker, "");
+
+    IdpStandIn.Request request = idp.getRequests().get(0);
+    assertEquals(first.marker.etag, request.getHeader("If-None-Match"));
+    assertEquals(first.marker.cursor, request.getParameter("since"));
+    assertTrue(second.response.notModified);
+    assertFalse(second.started);
+    assertEquals(0, second.users.size());
+    assertSame(first.marker, second.marker);
+  }
+
+  @Test
+  public void changedDirectoryReturnsOnlyTheChangesSinceTheCursor() throws Exception {
+    DirectoryResult first = getDirectory(new SyncMarker(), "");
+    String removedEmail = first.users.get(0).email;
+    directory.remove(removedEmail);
+    int changed = directory.churn(0.1);
+
+    DirectoryResult second = getDirectory(first.marker, "");
+
+    assertFalse(second.response.notModified);
+    assertTrue(second.response.delta);
+    assertEquals(String.valueOf(directory.getVersion()), second.marker.cursor);
+    assertFalse(first.marker.etag.equals(second.marker.etag));
+    assertEquals(changed + 1, second.users.size());
+    assertTrue(getUser(second.users, removedEmail).deleted);
+  }
+
+  @Test
+  public void firstRequestIsNotConditional() throws Exception {
+    DirectoryResult result = getDirectory(new SyncMarker(), "");
+
+    IdpStandIn.Request request = idp.getRequests().get(0);
+    assertNull(request.getHeader("If-None-Match"));
+    assertNull(request.getParameter("since"));
+    assertFalse(result.response.delta);
+    assertEquals(directory.size(), result.users.size());
+  }
+
+  @Test
+  public void serverWithoutDeltaReturnsEveryone() throws Exception {
+    idp.setDeltaSupported(false);
+    DirectoryResult first = getDirectory(new SyncMarker(), "");
+    directory.churn(0.1);
+
+    DirectoryResult second = getDirectory(first.marker, "");
+
+    assertFalse(second.response.delta);
+    assertEquals(directory.size(), second.users.size());
+  }
+
+  @Test
+  public void serverWithoutConditionalRequestsReturnsEveryone() throws Exception {
+    idp.setConditionalSupported(false);
+    DirectoryResult first = getDirectory(new SyncMarker(), "");
+
+    DirectoryResult second = getDirectory(first.marker, "");
+
+    assertNull(first.marker.etag);
+    assertFalse(second.response.notModified);
+    assertFalse(second.response.delta);
+    assertEquals(directory.size(), second.users.size());
+  }
+
+  @Test
+  public void directoryIsLimitedToTheCountries() throws Exception {
+    DirectoryResult result = getDirectory(new SyncMarker(), "se,dk");
+
+    assertEquals("se,dk", idp.getRequests().get(0).getParameter("country"));
+    assertEquals(directory.size(Arrays.asList("se", "dk")), result.users.size());
+
+    for (UserInfoResponse user : result.users) {
+      assertTrue(user.countryCode.equals("se") || user.countryCode.equals("dk"));
+    }
+  }
+
+  @Test
+  public void noCountriesFetchesEveryone() throws Exception {
+    DirectoryResult result = getDirectory(new SyncMarker(), "");
+
+    assertNull(idp.getRequests().get(0).getParameter("country"));
+    assertEquals(directory.size(), result.users.size());
+  }
+
+  @Test
+  public void oneCountryServesAFractionOfTheBytes() throws Exception {
+    getDirectory(new SyncMarker(), "");
+    long allBytes = idp.getBytesServed();
+    idp.resetCounters();
+    long received = apiClient.getBytesReceived();
+
+    getDirectory(new SyncMarker(), "se");
+    long countryBytes = idp.getBytesServed();
+
+    assertTrue(countryBytes < allBytes / 2);
+    assertTrue(apiClient.getBytesReceived() - received > 0);
+    assertTrue(apiClient.getBytesReceived() - received < countryBytes);
+  }
+
+  @Test
+  public void serverWithoutCountriesReturnsEveryone() throws Exception {
+    idp.setCountrySupported(false);
+
+    DirectoryResult result = getDirectory(new SyncMarker(), "se");
+
+    assertEquals(directory.size(), result.users.size());
+  }
+
+  @Test
+  public void stoppingEarlyDropsTheRestOfTheDirectory() throws Exception {
+    idp.setGzipSupported(false);
+    getDirectory(new SyncMarker(), "");
+    long directoryBytes = idp.getBytesServed();
+    idp.resetCounters();
+    idp.setThrottle(1024, 20);
+
+    try {
+      apiClient.getUserInfoResources(IdpStandIn.ACCESS_TOKEN, new SyncMarker(), "", new UserInfoHandler() {
+        @Override
+        public void start(DirectoryResponse response) {
+        }
+
+        @Override
+        public void handle(UserInfoResponse userInfo) throws InterruptedException {
+          throw new InterruptedException();
+        }
+      });
+
+      fail("Expected the sync to be interrupted.");
+    } catch (InterruptedException e) {
+      // the handler stopped reading
+    }
+
+    Thread.sleep(200);
+    assertTrue(idp.getBytesServed() < directoryBytes / 2);
+
+    // the connection is not returned to the pool
+    idp.setThrottle(0, 0);
+    apiClient.getUserInfoMeResource(IdpStandIn.ACCESS_TOKEN);
+    assertEquals(1, idp.getConnectionsAccepted());
+  }
+
+  private DirectoryResult getDirectory(SyncMarker marker, String countries) throws InterruptedException {
+    final DirectoryResult result = new DirectoryResult();
+
+    result.response = apiClient.getUserInfoResources(IdpStandIn.ACCESS_TOKEN, marker, countries, new UserInfoHandler() {
+      @Override
+      public void start(DirectoryResponse response) {
+        result.started = true;
+      }
+
+      @Override
+      public void handle(UserInfoResponse userInfo) {
+        result.users.add(userInfo);
+      }
+    });
+
+    result.marker = result.response.marker;
+    return result;
+  }
+
+  private UserInfoResponse getUser(List<UserInfoResponse> users, String email) {
+    for (UserInfoResponse user : users) {
+      if (user.email.equals(email)) return user;
+    }
+
+    throw new AssertionError("No user " + email + ".");
+  }
+
+  private static class DirectoryResult {
+    private DirectoryResponse response;
+    private SyncMarker marker;
+    private boolean started;
+    private final List<UserInfoResponse> users = new ArrayList<>();
+  }
+}